@@ -0,0 +1,222 @@
+package nachos.ag;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.Random;
+
+/**
+ * An autograder that runs microbenchmarks of the threading core in place of
+ * the kernel's self tests, and prints one line of measurements for each.
+ * Select it with <tt>-- nachos.ag.ThreadBenchmarkGrader</tt>; it needs no
+ * console, so it can run headless. It exits through <tt>done()</tt>, so a
+ * run that finishes prints <tt>success</tt>.
+ * <p/>
+ * <p/>
+ * The benchmarks are:
+ * <ul>
+ * <li><tt>yield</tt>: two threads yield to each other.
+ * <li><tt>semaphore</tt>: two threads hand control back and forth with a
+ * pair of semaphores.
+ * <li><tt>lock</tt>: <tt>ThreadBenchmarkGrader.threads</tt> threads acquire
+ * one lock, yield while holding it, and release it.
+ * <li><tt>condition</tt>: a producer and a consumer pass items through a
+ * one-slot buffer guarded by a lock and two <tt>Condition2</tt>s.
+ * <li><tt>join</tt>: the main thread forks <tt>threads</tt> threads that
+ * finish at once, and joins them all.
+ * <li><tt>alarm</tt>: <tt>threads</tt> threads each sleep on the alarm for
+ * random short times.
+ * </ul>
+ * Each benchmark does <tt>ThreadBenchmarkGrader.iterations</tt> rounds. The
+ * result line starts with the word <tt>threadbench</tt>, followed by
+ * <tt>key=value</tt> pairs: the operations done, the host nanoseconds and
+ * the simulated ticks per operation, and the dispatches per operation.
+ * <p/>
+ * <p/>
+ * The ready queue is created from the scheduler when the kernel starts, so
+ * one run measures one scheduler, the one named by
+ * <tt>ThreadedKernel.scheduler</tt>; compare schedulers by running once with
+ * each, as the <tt>bin/threadbench</tt> script does.
+ */
+public class ThreadBenchmarkGrader extends AutoGrader {
+    void init() {
+        iterations = Config.getInteger("ThreadBenchmarkGrader.iterations",
+                1000);
+        numThreads = Config.getInteger("ThreadBenchmarkGrader.threads", 8);
+        Lib.assertTrue(iterations > 0 && numThreads > 0);
+    }
+
+    void run() {
+        begin();
+        report("yield", yieldPingPong());
+        begin();
+        report("semaphore", semaphoreHandoff());
+        begin();
+        report("lock", lockContention());
+        begin();
+        report("condition", producerConsumer());
+        begin();
+        report("join", joinFanIn());
+        begin();
+        report("alarm", alarmStorm());
+
+        done();
+    }
+
+    private long yieldPingPong() {
+        Runnable yielder = new Runnable() {
+            public void run() {
+                for (int i = 0; i < iterations; i++)
+                    KThread.yield();
+            }
+        };
+        forkAndJoin(new Runnable[]{yielder, yielder});
+        return 2L * iterations;
+    }
+
+    private long semaphoreHandoff() {
+        final Semaphore ping = new Semaphore(0);
+        final Semaphore pong = new Semaphore(0);
+
+        Runnable pinger = new Runnable() {
+            public void run() {
+                for (int i = 0; i < iterations; i++) {
+                    ping.V();
+                    pong.P();
+                }
+            }
+        };
+        Runnable ponger = new Runnable() {
+            public void run() {
+                for (int i = 0; i < iterations; i++) {
+                    ping.P();
+                    pong.V();
+                }
+            }
+        };
+        forkAndJoin(new Runnable[]{pinger, ponger});
+        return 2L * iterations;
+    }
+
+    private long lockContention() {
+        final Lock lock = new Lock();
+
+        Runnable contender = new Runnable() {
+            public void run() {
+                for (int i = 0; i < iterations; i++) {
+                    lock.acquire();
+                    KThread.yield();
+                    lock.release();
+                }
+            }
+        };
+        Runnable[] contenders = new Runnable[numThreads];
+        for (int i = 0; i < numThreads; i++)
+            contenders[i] = contender;
+        forkAndJoin(contenders);
+        return (long) numThreads * iterations;
+    }
+
+    private long producerConsumer() {
+        final Lock lock = new Lock();
+        final Condition2 notEmpty = new Condition2(lock);
+        final Condition2 notFull = new Condition2(lock);
+        final int[] slot = new int[1];
+        final boolean[] full = new boolean[1];
+
+        Runnable producer = new Runnable() {
+            public void run() {
+                for (int i = 0; i < iterations; i++) {
+                    lock.acquire();
+                    while (full[0])
+                        notFull.sleep();
+                    slot[0] = i;
+                    full[0] = true;
+                    notEmpty.wake();
+                    lock.release();
+                }
+            }
+        };
+        Runnable consumer = new Runnable() {
+            public void run() {
+                for (int i = 0; i < iterations; i++) {
+                    lock.acquire();
+                    while (!full[0])
+                        notEmpty.sleep();
+                    Lib.assertTrue(slot[0] == i);
+                    full[0] = false;
+                    notFull.wake();
+                    lock.release();
+                }
+            }
+        };
+        forkAndJoin(new Runnable[]{producer, consumer});
+        return iterations;
+    }
+
+    private long joinFanIn() {
+        Runnable nothing = new Runnable() {
+            public void run() {
+            }
+        };
+        Runnable[] children = new Runnable[numThreads];
+        for (int i = 0; i < numThreads; i++)
+            children[i] = nothing;
+
+        for (int i = 0; i < iterations; i++)
+            forkAndJoin(children);
+        return (long) numThreads * iterations;
+    }
+
+    private long alarmStorm() {
+        final Random random = new Random(iterations);
+
+        Runnable sleeper = new Runnable() {
+            public void run() {
+                for (int i = 0; i < iterations; i++)
+                    ThreadedKernel.alarm.waitUntil(1 + random.nextInt(100));
+            }
+        };
+        Runnable[] sleepers = new Runnable[numThreads];
+        for (int i = 0; i < numThreads; i++)
+            sleepers[i] = sleeper;
+        forkAndJoin(sleepers);
+        return (long) numThreads * iterations;
+    }
+
+    private static void forkAndJoin(Runnable[] targets) {
+        KThread[] threads = new KThread[targets.length];
+        for (int i = 0; i < targets.length; i++) {
+            threads[i] = new KThread(targets[i]).setName("bench_" + i);
+            threads[i].fork();
+        }
+        for (int i = 0; i < targets.length; i++)
+            threads[i].join();
+    }
+
+    private void begin() {
+        startTicks = Machine.timer().getTime();
+        startDispatches = Machine.stats().numDispatches;
+        startNanos = System.nanoTime();
+    }
+
+    private void report(String benchmark, long ops) {
+        long nanos = System.nanoTime() - startNanos;
+        long ticks = Machine.timer().getTime() - startTicks;
+        int dispatches = Machine.stats().numDispatches - startDispatches;
+
+        System.out.println("threadbench"
+                + " scheduler=" + ThreadedKernel.scheduler.getClass().getName()
+                + " benchmark=" + benchmark
+                + " ops=" + ops
+                + " host_ns_per_op=" + nanos / ops
+                + " ticks_per_op=" + String.format("%.2f", (double) ticks / ops)
+                + " dispatches_per_op="
+                + String.format("%.2f", (double) dispatches / ops));
+    }
+
+    private int iterations, numThreads;
+
+    private long startTicks, startNanos;
+    private int startDispatches;
+}
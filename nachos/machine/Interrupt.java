@@ -5,6 +5,7 @@ package nachos.machine;
 import nachos.security.*;
 
 import java.util.TreeSet;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.SortedSet;
 
@@ -38,6 +39,14 @@ import java.util.SortedSet;
  * simulation (even with randomized time slices), but it wouldn't work on real
  * hardware. But even though Nachos can't always detect when your program
  * would fail in real life, you should still write properly synchronized code.
+ * <p/>
+ * <p/>
+ * If the <tt>Interrupt.cheapRestore</tt> configuration key is true, enabling
+ * interrupts instead advances the time by the cost of a restore, and only
+ * looks at the pending interrupts if one is already due. Kernel operations
+ * are then charged for explicitly with <tt>charge()</tt>, from a table of
+ * costs per operation read from the <tt>Interrupt.cost.</tt><i>operation</i>
+ * configuration keys.
  */
 public final class Interrupt {
     /**
@@ -54,6 +63,10 @@ public final class Interrupt {
 
         enabled = false;
         pending = new TreeSet<PendingInterrupt>();
+
+        cheapRestore = Config.getBoolean("Interrupt.cheapRestore", false);
+        if (cheapRestore)
+            restoreCost = getCost("restore", 1);
     }
 
     /**
@@ -96,12 +109,59 @@ public final class Interrupt {
         boolean oldStatus = enabled;
         enabled = status;
 
-        if (oldStatus == false && status == true)
-            tick(true);
+        if (oldStatus == false && status == true) {
+            if (cheapRestore)
+                advance(restoreCost);
+            else
+                tick(true);
+        }
 
         return oldStatus;
     }
 
+    /**
+     * Charge the kernel for an operation, such as acquiring a lock, when
+     * <tt>Interrupt.cheapRestore</tt> is true. The simulated time advances by
+     * the cost of the operation, read from the
+     * <tt>Interrupt.cost.</tt><i>operation</i> configuration key, or one
+     * kernel tick if the key is not set. Does nothing otherwise, since
+     * enabling interrupts already advances the time.
+     *
+     * @param    operation    the class of the operation, such as
+     * <tt>"lock"</tt>.
+     */
+    public void charge(String operation) {
+        if (cheapRestore)
+            advance(getCost(operation, Stats.KernelTick));
+    }
+
+    private int getCost(String operation, int defaultCost) {
+        Integer cost = costs.get(operation);
+        if (cost == null) {
+            cost = Config.getInteger("Interrupt.cost." + operation,
+                    defaultCost);
+            Lib.assertTrue(cost >= 0);
+            costs.put(operation, cost);
+        }
+        return cost;
+    }
+
+    /**
+     * Advance the kernel time by <i>ticks</i>. If interrupts are enabled,
+     * invoke the pending interrupt handlers only if one is due.
+     */
+    private void advance(int ticks) {
+        Stats stats = privilege.stats;
+        stats.kernelTicks += ticks;
+        stats.totalTicks += ticks;
+
+        if (enabled && stats.totalTicks >= nextDue) {
+            enabled = false;
+            checkIfDue();
+            enabled = true;
+        }
+    }
+
     /**
      * Tests whether interrupts are enabled.
      *
@@ -131,6 +191,8 @@ public final class Interrupt {
                         " interrupt handler at time = " + time);
 
         pending.add(toOccur);
+        if (time < nextDue)
+            nextDue = time;
     }
 
     private void tick(boolean inKernelMode) {
@@ -160,11 +222,15 @@ public final class Interrupt {
         if (Lib.test(dbgInt))
             print();
 
-        if (pending.isEmpty())
+        if (pending.isEmpty()) {
+            nextDue = Long.MAX_VALUE;
             return;
+        }
 
-        if (((PendingInterrupt) pending.first()).time > time)
+        if (((PendingInterrupt) pending.first()).time > time) {
+            nextDue = pending.first().time;
             return;
+        }
 
         Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 
@@ -182,6 +248,8 @@ public final class Interrupt {
 
             next.handler.run();
         }
+        nextDue = pending.isEmpty() ? Long.MAX_VALUE
+                : pending.first().time;
 
         Lib.debug(dbgInt, "  (end of list)");
     }
@@ -237,6 +305,14 @@ public final class Interrupt {
 
     private boolean enabled;
     private TreeSet<PendingInterrupt> pending;
+    /**
+     * The time of the earliest pending interrupt.
+     */
+    private long nextDue = Long.MAX_VALUE;
+
+    private boolean cheapRestore;
+    private int restoreCost;
+    private HashMap<String, Integer> costs = new HashMap<String, Integer>();
 
     private static final char dbgInt = 'i';
 
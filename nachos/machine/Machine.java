@@ -6,6 +6,7 @@ import nachos.security.*;
 import nachos.ag.*;
 
 import java.io.File;
+import java.util.LinkedList;
 
 /**
  * The master class of the simulated machine. Processes command line arguments,
@@ -97,10 +98,22 @@ public final class Machine {
      */
     public static void halt() {
         System.out.print("Machine halting!\n\n");
+        for (Runnable handler : haltHandlers)
+            handler.run();
         stats.print();
         terminate();
     }
 
+    /**
+     * Add a handler to be called by <tt>halt()</tt>, before the stats are
+     * printed. Handlers are called in the order they were added.
+     *
+     * @param    handler    the handler to call when the machine halts.
+     */
+    public static void addHaltHandler(Runnable handler) {
+        haltHandlers.add(handler);
+    }
+
     /**
      * Return an array containing all command line arguments.
      *
@@ -351,6 +364,15 @@ public final class Machine {
         return networkLink;
     }
 
+    /**
+     * Return the runtime statistics.
+     *
+     * @return the runtime statistics.
+     */
+    public static Stats stats() {
+        return stats;
+    }
+
     /**
      * Return the autograder.
      *
@@ -417,6 +439,8 @@ public final class Machine {
     private static String[] args = null;
 
     private static Stats stats = new Stats();
+    private static LinkedList<Runnable> haltHandlers =
+            new LinkedList<Runnable>();
 
     private static int numPhysPages = -1;
     private static long randomSeed = 0;
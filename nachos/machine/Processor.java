@@ -173,6 +173,43 @@ public final class Processor {
         Lib.assertTrue(!usingTLB);
 
         this.translations = pageTable;
+        this.pageDirectory = null;
+    }
+
+    /**
+     * Set the page directory pointer. All further address translations will
+     * walk the specified two-level page table instead of a page table array,
+     * until the next call to <tt>setPageTable()</tt>.
+     *
+     * @param    pageDirectory    the page directory to walk.
+     */
+    public void setPageDirectory(PageDirectory pageDirectory) {
+        Lib.assertTrue(!usingTLB);
+
+        this.pageDirectory = pageDirectory;
+        this.translations = null;
+    }
+
+    /**
+     * A two-level page table, walked by the processor when there is no TLB.
+     * The page directory holds one second-level table for each
+     * <tt>pageTableSize</tt> consecutive virtual pages, and each second-level
+     * table holds a page table entry for each of its pages: the physical page
+     * number in the bits of <tt>ptePPNMask</tt>, together with the
+     * <tt>pteValid</tt>, <tt>pteReadOnly</tt>, <tt>pteUsed</tt> and
+     * <tt>pteDirty</tt> bits. The processor sets the used and dirty bits in
+     * the entry itself, as it does in a <tt>TranslationEntry</tt>.
+     */
+    public interface PageDirectory {
+        /**
+         * Return the second-level table for a range of virtual pages.
+         *
+         * @param    index    the virtual page number divided by
+         *                      <tt>pageTableSize</tt>.
+         * @return the second-level table, of length <tt>pageTableSize</tt>,
+         * or <tt>null</tt> if no page in the range is mapped.
+         */
+        public int[] getPageTable(int index);
     }
 
     /**
@@ -308,6 +345,38 @@ public final class Processor {
 
         TranslationEntry entry = null;
 
+        // if walking a page directory, the entry is an int in a second-level
+        // table; check it and set its used and dirty bits in place
+        if (pageDirectory != null) {
+            int[] table = pageDirectory.getPageTable(vpn >>> pageTableBits);
+            int pte = (table == null) ? 0 : table[vpn & (pageTableSize - 1)];
+            if ((pte & pteValid) == 0) {
+                privilege.stats.numPageFaults++;
+                Lib.debug(dbgProcessor, "\t\tpage fault");
+                throw new MipsException(exceptionPageFault, vaddr);
+            }
+
+            if ((pte & pteReadOnly) != 0 && writing) {
+                Lib.debug(dbgProcessor, "\t\tread-only exception");
+                throw new MipsException(exceptionReadOnly, vaddr);
+            }
+
+            int ppn = pte & ptePPNMask;
+            if (ppn >= numPhysPages) {
+                Lib.debug(dbgProcessor, "\t\tbad ppn");
+                throw new MipsException(exceptionBusError, vaddr);
+            }
+
+            table[vpn & (pageTableSize - 1)] =
+                    pte | pteUsed | (writing ? pteDirty : 0);
+
+            int paddr = (ppn * pageSize) + offset;
+
+            if (Lib.test(dbgProcessor))
+                System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
+            return paddr;
+        }
+
         // if not using a TLB, then the vpn is an index into the table
         if (!usingTLB) {
             if (translations == null || vpn >= translations.length ||
@@ -606,6 +675,11 @@ public final class Processor {
      * depending on whether there is a TLB.
      */
     private TranslationEntry[] translations;
+    /**
+     * Without a TLB, the two-level page table to walk instead of
+     * <tt>translations</tt>, if one has been set.
+     */
+    private PageDirectory pageDirectory = null;
 
     /**
      * Size of a page, in bytes.
@@ -615,6 +689,34 @@ public final class Processor {
      * Number of pages in a 32-bit address space.
      */
     public static final int maxPages = (int) (0x100000000L / pageSize);
+    /**
+     * Log base 2 of the number of entries in a second-level page table.
+     */
+    public static final int pageTableBits = 10;
+    /**
+     * Number of entries in a second-level page table.
+     */
+    public static final int pageTableSize = 1 << pageTableBits;
+    /**
+     * Page table entry bit: the entry maps a page.
+     */
+    public static final int pteValid = 1 << 31;
+    /**
+     * Page table entry bit: the page is read-only.
+     */
+    public static final int pteReadOnly = 1 << 30;
+    /**
+     * Page table entry bit: the page has been read or written.
+     */
+    public static final int pteUsed = 1 << 29;
+    /**
+     * Page table entry bit: the page has been written.
+     */
+    public static final int pteDirty = 1 << 28;
+    /**
+     * Page table entry mask of the physical page number.
+     */
+    public static final int ptePPNMask = pteDirty - 1;
     /**
      * Number of physical pages in memory.
      */
@@ -29,6 +29,22 @@ public final class Stats {
                 + ", TLB misses " + numTLBMisses);
         System.out.println("Network I/O: received " + numPacketsReceived
                 + ", sent " + numPacketsSent);
+        if (numFreePages >= 0)
+            System.out.println("Memory: free pages " + numFreePages
+                    + ", fewest free " + minFreePages
+                    + ", failed allocations " + numPageAllocFailures);
+        if (numRealTimeJobs > 0)
+            System.out.println("Real-time: jobs " + numRealTimeJobs
+                    + ", deadline misses " + numDeadlineMisses);
+        if (levelOccupancy != null) {
+            System.out.print("Scheduler levels: queued");
+            for (int i = 0; i < levelOccupancy.length; i++)
+                System.out.print(" " + levelOccupancy[i]);
+            System.out.print(", ticks");
+            for (int i = 0; i < levelTicks.length; i++)
+                System.out.print(" " + levelTicks[i]);
+            System.out.println();
+        }
     }
 
     /**
@@ -77,6 +93,45 @@ public final class Stats {
      * The total number of packets Nachos has received from the network.
      */
     public int numPacketsReceived = 0;
+    /**
+     * The total number of real-time jobs that have finished.
+     */
+    public int numRealTimeJobs = 0;
+    /**
+     * The total number of real-time jobs that finished after their deadline.
+     */
+    public int numDeadlineMisses = 0;
+    /**
+     * The total number of times the kernel has dispatched a thread.
+     */
+    public int numDispatches = 0;
+
+    /**
+     * The number of physical pages currently free, or -1 if the kernel does
+     * not manage physical memory.
+     */
+    public int numFreePages = -1;
+    /**
+     * The fewest physical pages that have been free at once, or -1 if the
+     * kernel does not manage physical memory.
+     */
+    public int minFreePages = -1;
+    /**
+     * The total number of requests for physical pages that were refused
+     * because too few were free.
+     */
+    public int numPageAllocFailures = 0;
+
+    /**
+     * The number of threads currently in the ready queue at each level of a
+     * multi-level scheduler, or <tt>null</tt> if the scheduler has no levels.
+     */
+    public int[] levelOccupancy = null;
+    /**
+     * The simulated time spent running threads at each level of a
+     * multi-level scheduler, or <tt>null</tt> if the scheduler has no levels.
+     */
+    public long[] levelTicks = null;
 
     /**
      * The amount to advance simulated time after each user instructions is
@@ -66,6 +66,7 @@ public class StubFileSystem implements FileSystem {
     private void delay() {
         long time = Machine.timer().getTime();
         int amount = 1000;
+        ThreadedKernel.scheduler.waitingForIO();
         ThreadedKernel.alarm.waitUntil(amount);
         Lib.assertTrue(Machine.timer().getTime() >= time + amount);
     }
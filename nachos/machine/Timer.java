@@ -13,6 +13,10 @@ import nachos.security.*;
  * interrupt to occur every time approximately 500 clock ticks pass. There is
  * a small degree of randomness here, so interrupts do not occur exactly every
  * 500 ticks.
+ * <p/>
+ * The timer can also raise a one-shot deadline interrupt at a time chosen by
+ * the kernel, for waking sleeping threads without waiting for the next
+ * periodic interrupt.
  */
 public final class Timer {
     /**
@@ -52,6 +56,35 @@ public final class Timer {
         this.handler = handler;
     }
 
+    /**
+     * Set the callback to use as a deadline interrupt handler. The deadline
+     * interrupt handler will be called once when the time set with
+     * <tt>setDeadline()</tt> is reached.
+     *
+     * @param    handler        the deadline interrupt handler.
+     */
+    public void setDeadlineHandler(Runnable handler) {
+        this.deadlineHandler = handler;
+    }
+
+    /**
+     * Raise a deadline interrupt as soon as the time is at least <i>time</i>.
+     * Replaces the deadline set before, if it has not been reached yet.
+     *
+     * @param    time    the time at which to interrupt.
+     */
+    public void setDeadline(long time) {
+        final long id = ++deadlineId;
+        long delay = Math.max(1, time - getTime());
+
+        privilege.interrupt.schedule(delay, "deadline", new Runnable() {
+            public void run() {
+                if (id == deadlineId && deadlineHandler != null)
+                    deadlineHandler.run();
+            }
+        });
+    }
+
     /**
      * Get the current time.
      *
@@ -88,4 +121,7 @@ public final class Timer {
 
     private Privilege privilege;
     private Runnable handler = null;
+
+    private Runnable deadlineHandler = null;
+    private long deadlineId = 0;
 }
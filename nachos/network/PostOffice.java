@@ -10,25 +10,30 @@ import nachos.threads.*;
  * corrupted, but they might get lost.
  * <p/>
  * <p/>
- * The post office uses a "postal worker" thread to wait for messages to arrive
- * from the network and to place them in the appropriate queues. This cannot
- * be done in the receive interrupt handler because each queue (implemented
- * with a <tt>SynchList</tt>) is protected by a lock.
+ * The receive interrupt handler leaves delivering a message to a bottom half,
+ * which places it in the appropriate queue. This cannot be done in the
+ * interrupt handler itself because each queue (implemented with a
+ * <tt>BoundedQueue</tt>) is protected by a lock.
+ * <p/>
+ * <p/>
+ * Each queue holds at most <tt>PostOffice.mailboxCapacity</tt> messages.
+ * Messages arriving for a full queue are dropped, as the network itself may
+ * drop them, so that a flood of packets to a port nobody reads from uses a
+ * bounded amount of memory and does not hold up mail to other ports.
  */
 public class PostOffice {
     /**
-     * Allocate a new post office, using an array of <tt>SynchList</tt>s.
-     * Register the interrupt handlers with the network hardware and start the
-     * "postal worker" thread.
+     * Allocate a new post office, using an array of <tt>BoundedQueue</tt>s.
+     * Register the interrupt handlers with the network hardware.
      */
     public PostOffice() {
-        messageReceived = new Semaphore(0);
         messageSent = new Semaphore(0);
         sendLock = new Lock();
 
-        queues = new SynchList[MailMessage.portLimit];
+        int capacity = Config.getInteger("PostOffice.mailboxCapacity", 16);
+        queues = new BoundedQueue[MailMessage.portLimit];
         for (int i = 0; i < queues.length; i++)
-            queues[i] = new SynchList();
+            queues[i] = new BoundedQueue(capacity);
 
         Runnable receiveHandler = new Runnable() {
             public void run() {
@@ -40,16 +45,13 @@ public class PostOffice {
                 sendInterrupt();
             }
         };
-        Machine.networkLink().setInterruptHandlers(receiveHandler,
-                sendHandler);
-
-        KThread t = new KThread(new Runnable() {
+        postalDelivery = new BottomHalf.Work() {
             public void run() {
                 postalDelivery();
             }
-        });
-
-        t.fork();
+        };
+        Machine.networkLink().setInterruptHandlers(receiveHandler,
+                sendHandler);
     }
 
     /**
@@ -63,7 +65,7 @@ public class PostOffice {
 
         Lib.debug(dbgNet, "waiting for mail on port " + port);
 
-        MailMessage mail = (MailMessage) queues[port].removeFirst();
+        MailMessage mail = (MailMessage) queues[port].take();
 
         if (Lib.test(dbgNet))
             System.out.println("got mail on port " + port + ": " + mail);
@@ -72,37 +74,38 @@ public class PostOffice {
     }
 
     /**
-     * Wait for incoming messages, and then put them in the correct mailbox.
+     * The bottom half of the receive interrupt: dequeue the packet that has
+     * arrived, and put it in the correct mailbox.
      */
     private void postalDelivery() {
-        while (true) {
-            messageReceived.P();
+        Packet p = Machine.networkLink().receive();
+        if (p == null)
+            return;
 
-            Packet p = Machine.networkLink().receive();
+        MailMessage mail;
 
-            MailMessage mail;
-
-            try {
-                mail = new MailMessage(p);
-            } catch (MalformedPacketException e) {
-                continue;
-            }
+        try {
+            mail = new MailMessage(p);
+        } catch (MalformedPacketException e) {
+            return;
+        }
 
-            if (Lib.test(dbgNet))
-                System.out.println("delivering mail to port " + mail.dstPort
-                        + ": " + mail);
+        if (Lib.test(dbgNet))
+            System.out.println("delivering mail to port " + mail.dstPort
+                    + ": " + mail);
 
-            // atomically add message to the mailbox and wake a waiting thread
-            queues[mail.dstPort].add(mail);
-        }
+        // atomically add message to the mailbox and wake a waiting thread
+        if (!queues[mail.dstPort].offer(mail))
+            Lib.debug(dbgNet, "mailbox full, dropping mail to port "
+                    + mail.dstPort);
     }
 
     /**
      * Called when a packet has arrived and can be dequeued from the network
-     * link.
+     * link. Leaves dequeuing it to <tt>postalDelivery()</tt>.
      */
     private void receiveInterrupt() {
-        messageReceived.V();
+        ThreadedKernel.bottomHalf.schedule(postalDelivery);
     }
 
     /**
@@ -129,8 +132,8 @@ public class PostOffice {
         messageSent.V();
     }
 
-    private SynchList[] queues;
-    private Semaphore messageReceived;    // V'd when a message can be dequeued
+    private BoundedQueue[] queues;
+    private BottomHalf.Work postalDelivery;    // bottom half of receiveInterrupt()
     private Semaphore messageSent;    // V'd when a message can be queued
     private Lock sendLock;
 
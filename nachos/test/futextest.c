@@ -0,0 +1,43 @@
+/* futextest.c
+ *	Test the futex system calls and the user-level mutex and condition
+ *	variable in usync.c, from a single process.
+ */
+
+#include "stdio.h"
+#include "stdlib.h"
+#include "usync.h"
+
+int
+main()
+{
+    mutex_t m = MUTEX_INITIALIZER;
+    cond_t c = COND_INITIALIZER;
+    int word = 5;
+    int i;
+
+    /* the word does not hold the expected value, so no sleep */
+    assert(futex_wait(&word, 6) == -1);
+    assert(futex_wake(&word, 1) == 0);
+    assert(futex_wait((int *) 2, 0) == -1);
+
+    assert(cmpxchg(&word, 5, 7) == 5 && word == 7);
+    assert(cmpxchg(&word, 5, 9) == 7 && word == 7);
+
+    /* uncontended: no system calls */
+    for (i = 0; i < 1000; i++) {
+	mutex_lock(&m);
+	assert(m.state == 1);
+	cond_signal(&c);
+	mutex_unlock(&m);
+    }
+    assert(m.state == 0 && c.seq == 0);
+
+    mutex_lock(&m);
+    assert(!mutex_trylock(&m));
+    mutex_unlock(&m);
+    assert(mutex_trylock(&m));
+    mutex_unlock(&m);
+
+    printf("futextest passed\n");
+    return 0;
+}
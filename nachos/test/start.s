@@ -21,6 +21,13 @@
 	.globl	__start
 	.ent	__start
 __start:
+	addu	$16,$4,$0	/* keep argc and argv across the call */
+	addu	$17,$5,$0
+	la	$4,__atomic_start
+	la	$5,__atomic_end
+	jal	atomic_range	/* register cmpxchg's atomic sequence */
+	addu	$4,$16,$0
+	addu	$5,$17,$0
 	jal	main
 	addu	$4,$2,$0
 	jal	exit	 /* if we return from main, exit(return value) */
@@ -67,3 +74,33 @@ name:				; \
 	SYSCALLSTUB(mmap, syscallMmap)
 	SYSCALLSTUB(connect, syscallConnect)
 	SYSCALLSTUB(accept, syscallAccept)
+	SYSCALLSTUB(futex_wait, syscallFutexWait)
+	SYSCALLSTUB(futex_wake, syscallFutexWake)
+	SYSCALLSTUB(atomic_range, syscallAtomicRange)
+
+/* -------------------------------------------------------------
+ * cmpxchg(int *addr, int expected, int value)
+ *	If *addr == expected, set *addr = value; return the old *addr.
+ *
+ *	The processor has no ll/sc, so the instructions from
+ *	__atomic_start to __atomic_end are registered with the kernel
+ *	by __start as a restartable atomic sequence: a thread switched
+ *	out inside it is restarted at __atomic_start. The store must
+ *	stay the last instruction of the sequence.
+ * -------------------------------------------------------------
+ */
+	.globl	cmpxchg
+	.ent	cmpxchg
+cmpxchg:
+	.set	noreorder
+__atomic_start:
+	lw	$2,0($4)
+	nop
+	bne	$2,$5,1f
+	nop
+	sw	$6,0($4)
+__atomic_end:
+1:	j	$31
+	nop
+	.set	reorder
+	.end	cmpxchg
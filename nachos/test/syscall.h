@@ -25,6 +25,9 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallFutexWait	13
+#define syscallFutexWake	14
+#define syscallAtomicRange	15
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -257,6 +260,45 @@ int connect(int host, int port);
  */
 int accept(int port);
 
+/**
+ * Sleep until another thread calls futex_wake() on addr, but only if the word
+ * at addr still equals expected; otherwise return immediately. Checking the
+ * word and going to sleep happen atomically, so a futex_wake() made after the
+ * word was changed cannot be lost. Futexes are identified by the physical
+ * address of the word, so processes that share a page share its futexes.
+ *
+ * Returns 0 after being woken, or -1 if the word did not equal expected or
+ * addr is not a valid, word-aligned, writable address.
+ */
+int futex_wait(int *addr, int expected);
+
+/**
+ * Wake up to count threads sleeping in futex_wait() on addr.
+ *
+ * Returns the number of threads woken, or -1 if an error occurred.
+ */
+int futex_wake(int *addr, int count);
+
+/**
+ * Declare the instructions from start up to (but not including) end a
+ * restartable atomic sequence: a thread switched out while its PC is inside
+ * the sequence resumes at start. The last instruction of the sequence must be
+ * its only store. __start registers cmpxchg() this way before calling main(),
+ * so user programs should not need to call this.
+ *
+ * Returns 0 on success, or -1 if the range is invalid or too long.
+ */
+int atomic_range(void *start, void *end);
+
+/**
+ * Atomically compare the word at addr with expected and, if they are equal,
+ * replace it with value. Implemented in start.s as a restartable atomic
+ * sequence, since the processor has no atomic instructions.
+ *
+ * Returns the old value of the word.
+ */
+int cmpxchg(int *addr, int expected, int value);
+
 #endif /* START_S */
 
 #endif /* SYSCALL_H */
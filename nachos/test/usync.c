@@ -0,0 +1,88 @@
+#include "usync.h"
+
+/* Atomically store value in *addr and return the old value. */
+static int xchg(int *addr, int value)
+{
+    int old;
+
+    do {
+        old = *addr;
+    } while (cmpxchg(addr, old, value) != old);
+
+    return old;
+}
+
+void mutex_init(mutex_t *m)
+{
+    m->state = 0;
+}
+
+/* There is only one processor, so a thread that finds the mutex locked
+ * does not spin: the holder cannot run, and release it, until this thread
+ * gives up the processor. It marks the mutex contended and sleeps instead.
+ */
+void mutex_lock(mutex_t *m)
+{
+    int c;
+
+    if ((c = cmpxchg(&m->state, 0, 1)) == 0)
+	return;
+
+    if (c != 2)
+	c = xchg(&m->state, 2);
+    while (c != 0) {
+	futex_wait(&m->state, 2);
+	c = xchg(&m->state, 2);
+    }
+}
+
+int mutex_trylock(mutex_t *m)
+{
+    return cmpxchg(&m->state, 0, 1) == 0;
+}
+
+void mutex_unlock(mutex_t *m)
+{
+    if (xchg(&m->state, 0) == 2)
+	futex_wake(&m->state, 1);
+}
+
+void cond_init(cond_t *c)
+{
+    c->seq = 0;
+    c->waiters = 0;
+}
+
+void cond_wait(cond_t *c, mutex_t *m)
+{
+    int seq = c->seq;
+
+    c->waiters++;
+    mutex_unlock(m);
+    futex_wait(&c->seq, seq);
+
+    /* other threads may have been woken with this one, so take the mutex
+     * as contended, or an unlock could forget to wake them
+     */
+    while (xchg(&m->state, 2) != 0)
+	futex_wait(&m->state, 2);
+    c->waiters--;
+}
+
+void cond_signal(cond_t *c)
+{
+    if (c->waiters == 0)
+	return;
+
+    c->seq++;
+    futex_wake(&c->seq, 1);
+}
+
+void cond_broadcast(cond_t *c)
+{
+    if (c->waiters == 0)
+	return;
+
+    c->seq++;
+    futex_wake(&c->seq, c->waiters);
+}
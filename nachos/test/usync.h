@@ -0,0 +1,45 @@
+/*-------------------------------------------------------------
+ * usync.h
+ *
+ * Mutexes and condition variables for user programs, built on
+ * cmpxchg() and the futex_wait()/futex_wake() system calls. The
+ * uncontended cases run entirely in user space; only a thread that
+ * has to wait, or that has to wake a waiting thread, enters the
+ * kernel.
+ *-------------------------------------------------------------*/
+
+#ifndef USYNC_H
+#define USYNC_H
+
+#include "syscall.h"
+
+/* A mutex is 0 when unlocked, 1 when locked, and 2 when locked with
+ * threads (possibly) waiting for it.
+ */
+typedef struct {
+    int state;
+} mutex_t;
+
+/* A condition variable counts signals in seq, which waiters sleep on, and
+ * counts its waiters so that signalling nobody costs no system call.
+ */
+typedef struct {
+    int seq;
+    int waiters;
+} cond_t;
+
+#define MUTEX_INITIALIZER	{ 0 }
+#define COND_INITIALIZER	{ 0, 0 }
+
+void mutex_init(mutex_t *m);
+void mutex_lock(mutex_t *m);
+int mutex_trylock(mutex_t *m);
+void mutex_unlock(mutex_t *m);
+
+/* The calling thread must hold m for all of these. */
+void cond_init(cond_t *c);
+void cond_wait(cond_t *c, mutex_t *m);
+void cond_signal(cond_t *c);
+void cond_broadcast(cond_t *c);
+
+#endif // USYNC_H
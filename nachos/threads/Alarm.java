@@ -2,6 +2,7 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.Arrays;
 import java.util.Random;
 
 /**
@@ -10,97 +11,109 @@ import java.util.Random;
  */
 public class Alarm {
     /**
-     * Allocate a new Alarm. Set the machine's timer interrupt handler to this
-     * alarm's callback.
+     * Allocate a new Alarm. Set the machine's timer interrupt and deadline
+     * interrupt handlers to this alarm's callbacks.
      * <p/>
      * <p><b>Note</b>: Nachos will not function correctly with more than one
      * alarm.
      */
     public Alarm() {
+        wakeWork = new BottomHalf.Work() {
+            public void run() {
+                wakeDue();
+            }
+        };
         Machine.timer().setInterruptHandler(new Runnable() {
             public void run() {
                 timerInterrupt();
             }
         });
+        Machine.timer().setDeadlineHandler(new Runnable() {
+            public void run() {
+                deadlineInterrupt();
+            }
+        });
     }
 
     /**
+     * A binary min-heap of sleeping threads on wake time, kept in parallel
+     * arrays that grow and shrink by doubling. Every thread in the heap keeps
+     * its index in <tt>alarmIndex</tt>, so it can be removed early.
+     * <p/>
      * Heap should be accessed ATOMICALLY
      */
+    private static class Heap {
+        private long[] times = new long[minLength];
+        private KThread[] threads = new KThread[minLength];
+        private int size = 0;
 
-    private class Heap {
-        public class Entry {
-            public KThread thread;
-            public long time;
-            public Entry(KThread thread, long time){
-                this.thread = thread; this.time = time;
+        private void up(int pos, KThread thread, long time){
+            while(pos > 0){
+                int nxt = (pos-1) >> 1;
+                if(times[nxt] <= time) break;
+                place(pos, threads[nxt], times[nxt]);
+                pos = nxt;
             }
+            place(pos, thread, time);
         }
 
-        private Entry[] array;
-        private int size = 0;
-
-        public Heap(int len){
-            array = new Entry[len];
+        private void down(int pos, KThread thread, long time){
+            while(2*pos+1 < size){
+                int nxt = 2*pos+1;
+                if(nxt+1 < size && times[nxt+1] < times[nxt]) nxt++;
+                if(times[nxt] >= time) break;
+                place(pos, threads[nxt], times[nxt]);
+                pos = nxt;
+            }
+            place(pos, thread, time);
         }
 
-        private void up(int pos){
-            while(pos > 0){
-                int nxt = pos >> 1;
-                if(array[nxt].time > array[pos].time){
-                    Entry tmp = array[pos]; array[pos] = array[nxt]; array[nxt] = tmp;
-                    pos = nxt;
-                }
-                else break;
-            }
+        private void place(int pos, KThread thread, long time){
+            threads[pos] = thread;
+            times[pos] = time;
+            thread.alarmIndex = pos;
         }
 
-        private void down(int pos){
-            while(2*pos+1 <= size-1){
-                if(2*pos+1 == size-1){
-                    if(array[pos].time > array[2*pos+1].time){
-                        Entry tmp = array[pos]; array[pos] = array[size-1]; array[size-1] = tmp;
-                    }
-                    break;
-                }
-                else {
-                    if(array[pos].time <= array[2*pos+1].time && array[pos].time <= array[2*pos+2].time) break;
-                    else {
-                        if(array[2*pos+1].time < array[2*pos+2].time){
-                            Entry tmp = array[pos]; array[pos] = array[2*pos+1]; array[2*pos+1] = tmp;
-                            pos = 2*pos+1;
-                        }
-                        else {
-                            Entry tmp = array[pos]; array[pos] = array[2*pos+2]; array[2*pos+2] = tmp;
-                            pos = 2*pos+2;
-                        }
-                    }
-                }
-            }
+        private void resize(int len){
+            times = Arrays.copyOf(times, len);
+            threads = Arrays.copyOf(threads, len);
         }
 
         public void add(KThread thread, long time){
-            Entry entry = new Entry(thread, time);
-            array[size++] = entry;
-            up(size-1);
+            if(size == times.length) resize(2*size);
+            up(size++, thread, time);
+        }
+
+        public KThread remove(int pos){
+            KThread ret = threads[pos];
+            ret.alarmIndex = notSleeping;
+            KThread last = threads[--size];
+            long time = times[size];
+            threads[size] = null;
+            if(pos < size){
+                if(pos > 0 && times[(pos-1) >> 1] > time) up(pos, last, time);
+                else down(pos, last, time);
+            }
+            if(times.length > minLength && size < times.length/4)
+                resize(times.length/2);
+            return ret;
         }
 
         public KThread pop(){
             if(size == 0) return null;
-            KThread ret = array[0].thread;
-            array[0] = array[--size];
-            down(0);
-            return ret;
+            return remove(0);
         }
 
         public long peek(){
             if(size == 0) return -1;
-            else return array[0].time;
+            else return times[0];
         }
 
         public boolean empty(){
             return size==0;
         }
+
+        private static final int minLength = 16;
     }
 
     /**
@@ -110,16 +123,74 @@ public class Alarm {
      * that should be run.
      */
     public void timerInterrupt(){
-        long curTime = Machine.timer().getTime();
-        for(; !heap.empty() && heap.peek() <= curTime;)
+        if(!heap.empty() && heap.peek() <= Machine.timer().getTime())
+            wakeDue();
+        if(ThreadedKernel.scheduler.timerInterrupt())
+            KThread.currentThread().yield();
+    }
+
+    /**
+     * The deadline interrupt handler. Called by the machine's timer at the
+     * wake time of the first sleeping thread, so that threads wake exactly
+     * on time rather than at the next timer interrupt. Leaves waking the
+     * threads that are due, and setting the deadline for the next one, to
+     * <tt>wakeDue()</tt>.
+     */
+    public void deadlineInterrupt(){
+        armed = Long.MAX_VALUE;
+        wakeDue();
+    }
+
+    /**
+     * Wake the threads that are due, disabling interrupts only to wake each
+     * one rather than for the whole burst. Wakes at most the bottom-half
+     * budget's worth, and leaves the rest to a bottom half that does the
+     * same. Once none are due, sets the deadline for the next one.
+     * <p/>
+     * <p/>
+     * The interrupt handlers call this directly, so a sleeper is readied at
+     * its wake time whatever the scheduler makes of the bottom-half thread,
+     * unless more than a budget's worth of sleepers are due at once; the
+     * handler's work stays bounded by the budget.
+     */
+    private void wakeDue(){
+        int budget = (ThreadedKernel.bottomHalf != null)
+                ? ThreadedKernel.bottomHalf.budget() : Integer.MAX_VALUE;
+
+        for(int woken = 0; ; woken++){
+            boolean intStatus = Machine.interrupt().disable();
+            if(heap.empty() || heap.peek() > Machine.timer().getTime()){
+                if(!heap.empty()) arm(heap.peek());
+                Machine.interrupt().restore(intStatus);
+                return;
+            }
+            if(woken == budget){
+                deferred++;
+                ThreadedKernel.bottomHalf.schedule(wakeWork);
+                Machine.interrupt().restore(intStatus);
+                return;
+            }
             heap.pop().ready();
+            Machine.interrupt().restore(intStatus);
+        }
+    }
+
+    /**
+     * Set the timer's deadline to <i>time</i> if it is earlier than the
+     * deadline already set. A deadline left set for a thread that has been
+     * woken or cancelled simply finds nothing due.
+     */
+    private void arm(long time){
+        if(time < armed){
+            armed = time;
+            Machine.timer().setDeadline(time);
+        }
     }
 
     /**
      * Put the current thread to sleep for at least <i>x</i> ticks,
-     * waking it up in the timer interrupt handler. The thread must be
-     * woken up (placed in the scheduler ready set) during the first timer
-     * interrupt where
+     * waking it up in the deadline interrupt handler. The thread is woken up
+     * (placed in the scheduler ready set) as soon as
      * <p/>
      * <p><blockquote>
      * (current time) >= (WaitUntil called time)+(x)
@@ -129,21 +200,60 @@ public class Alarm {
      * @see    nachos.machine.Timer#getTime()
      */
     public void waitUntil(long x) {
-        // for now, cheat just to get something working (busy waiting is bad)
+        timedWait(x);
+    }
+
+    /**
+     * Like <tt>waitUntil()</tt>, except that the thread can be woken earlier
+     * by <tt>cancel()</tt>.
+     *
+     * @param    x    the maximum number of clock ticks to wait.
+     * @return    <tt>true</tt> if the thread slept for the full time,
+     * <tt>false</tt> if the sleep was cancelled.
+     */
+    public boolean timedWait(long x) {
         long wakeTime = Machine.timer().getTime() + x;
-        /*
-        while (wakeTime > Machine.timer().getTime())
-            KThread.yield();
-        */
-        lock.acquire();
-        heap.add(KThread.currentThread(), wakeTime);
-        lock.release();
+        // disable first, or the timer could wake this thread before it sleeps
+        boolean intStatus = Machine.interrupt().disable();
+        KThread thread = KThread.currentThread();
+        heap.add(thread, wakeTime);
+        arm(wakeTime);
+
+        KThread.sleep();
+        boolean timedOut = (thread.alarmIndex != cancelled);
+        thread.alarmIndex = notSleeping;
+        Machine.interrupt().restore(intStatus);
+        return timedOut;
+    }
 
+    /**
+     * Wake the specified thread now if it is sleeping on the alarm, making
+     * <tt>timedWait()</tt> return <tt>false</tt>. Lets a thread
+     * wait for an event with a timeout: it sleeps on the alarm, and whoever
+     * signals the event cancels the sleep.
+     *
+     * @param    thread    the thread to wake.
+     * @return    <tt>true</tt> if the thread was sleeping.
+     */
+    public boolean cancel(KThread thread) {
         boolean intStatus = Machine.interrupt().disable();
-        KThread.currentThread().sleep();
+
+        boolean sleeping = (thread.alarmIndex >= 0);
+        if (sleeping) {
+            heap.remove(thread.alarmIndex);
+            thread.alarmIndex = cancelled;
+            thread.ready();
+        }
+
         Machine.interrupt().restore(intStatus);
+        return sleeping;
     }
 
+    /**
+     * Values of <tt>KThread.alarmIndex</tt> for a thread not in the heap.
+     */
+    private static final int notSleeping = -1, cancelled = -2;
+
     /**
      * Alarm simple testcase
      */
@@ -163,6 +273,10 @@ public class Alarm {
         private int wait;
     }
 
+    /**
+     * Tests whether this module is working. Runs <tt>sleeperBenchmark()</tt>
+     * too if the <tt>Alarm.benchmark</tt> configuration key is true.
+     */
     public static void selfTest(){
         System.out.print('\n');
         System.out.println("Begin task3");
@@ -211,9 +325,98 @@ public class Alarm {
         for(int i=0; i<size; i++) threads[i].join();
         System.out.println("alarm test #4 ends.");
 
+        // 1 thd waits long and is cancelled
+        System.out.println("alarm test #5 begins.");
+        KThread sleeper = new KThread(new Runnable() {
+            public void run(){
+                boolean timedOut = ThreadedKernel.alarm.timedWait(1000000);
+                System.out.println("woke up at " + Machine.timer().getTime()
+                        + (timedOut ? ", timed out" : ", cancelled"));
+            }
+        }).setName("cancelled thread");
+        sleeper.fork();
+        ThreadedKernel.alarm.waitUntil(1000);
+        System.out.println("cancel at " + Machine.timer().getTime());
+        ThreadedKernel.alarm.cancel(sleeper);
+        sleeper.join();
+        System.out.println("alarm test #5 ends.");
+
+        // sleepers due together are woken in the handler up to the budget
+        System.out.println("alarm test #6 begins.");
+        final Alarm alarm = ThreadedKernel.alarm;
+        int budget = ThreadedKernel.bottomHalf.budget();
+        for(int n : new int[]{1, budget, budget + 3}){
+            long deferred = alarm.deferred;
+            final long wakeTime = Machine.timer().getTime() + 100000;
+            final long[] late = new long[1];
+            threads = new KThread[n];
+            for(int i=0; i<n; i++) {
+                threads[i] = new KThread(new Runnable() {
+                    public void run(){
+                        alarm.waitUntil(wakeTime - Machine.timer().getTime());
+                        late[0] = Math.max(late[0],
+                                Machine.timer().getTime() - wakeTime);
+                    }
+                }).setName("wait thread"+i);
+                threads[i].fork();
+            }
+            for(int i=0; i<n; i++) threads[i].join();
+            Lib.assertTrue(alarm.deferred - deferred
+                    == ((n > budget) ? 1 : 0));
+            System.out.println(n + " sleepers due together, deferred "
+                    + (alarm.deferred - deferred) + ", latest " + late[0]
+                    + " ticks late");
+        }
+        System.out.println("alarm test #6 ends.");
+
+        if(Config.getBoolean("Alarm.benchmark", false))
+            sleeperBenchmark(1000000);
+
         System.out.println("End task3\n");
     }
 
-    private Heap heap = new Heap(5000);
-    private Lock lock = new Lock();
+    /**
+     * Put <tt>n</tt> never-forked threads to sleep in a heap of their own,
+     * with random wake times, cancel every tenth one, then wake the rest in
+     * order. Print the average host time of each operation.
+     */
+    public static void sleeperBenchmark(int n){
+        KThread[] threads = new KThread[n];
+        Random random = new Random(n);
+        Heap heap = new Heap();
+
+        // create the threads with interrupts disabled, so no time passes
+        boolean intStatus = Machine.interrupt().disable();
+        for(int i=0; i<n; i++) threads[i] = new KThread();
+        long start = System.nanoTime();
+        for(int i=0; i<n; i++)
+            heap.add(threads[i], random.nextInt(n));
+        long added = System.nanoTime();
+        int cancels = 0;
+        for(int i=0; i<n; i+=10, cancels++)
+            heap.remove(threads[i].alarmIndex);
+        long cancelled = System.nanoTime();
+        long last = 0;
+        for(; !heap.empty();){
+            Lib.assertTrue(heap.peek() >= last);
+            last = heap.peek();
+            heap.pop();
+        }
+        long woken = System.nanoTime();
+        Machine.interrupt().restore(intStatus);
+
+        System.out.println("sleepers " + n
+                + " add_ns " + (added - start) / n
+                + " cancel_ns " + (cancelled - added) / cancels
+                + " wake_ns " + (woken - cancelled) / (n - cancels));
+    }
+
+    private Heap heap = new Heap();
+    private BottomHalf.Work wakeWork;
+    /** The number of times waking due sleepers was left to a bottom half. */
+    private long deferred = 0;
+    /**
+     * The deadline set on the timer, or <tt>Long.MAX_VALUE</tt> if none.
+     */
+    private long armed = Long.MAX_VALUE;
 }
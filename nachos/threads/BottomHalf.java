@@ -0,0 +1,200 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * Runs work deferred by interrupt handlers, in a kernel thread of its own
+ * with interrupts enabled.
+ * <p/>
+ * <p/>
+ * An interrupt handler runs with interrupts disabled, so anything slow it
+ * does holds up every other interrupt and every thread. Instead, a handler
+ * can be split: the top half, the handler itself, only records what it must
+ * and calls <tt>schedule()</tt>; the bottom half, a <tt>Work</tt>, does the
+ * rest later in the bottom-half thread. Scheduling a bottom half that is
+ * already pending does nothing, so a burst of interrupts is handled in one
+ * run. Pending bottom halves are linked through themselves, so scheduling
+ * one takes constant time and allocates nothing.
+ * <p/>
+ * <p/>
+ * The bottom-half thread runs at priority <tt>BottomHalf.priority</tt>, so
+ * that schedulers honouring priorities run it ahead of ordinary threads. It
+ * runs pending bottom halves in batches of at most <tt>BottomHalf.budget</tt>,
+ * yielding between batches so that a flood of interrupts cannot starve
+ * everything else. A bottom half with much to do should do at most
+ * <tt>budget()</tt> units of it and schedule itself again.
+ * <p/>
+ * <p/>
+ * What the priority buys depends on the scheduler: it is a priority under
+ * <tt>PriorityScheduler</tt>, a number of tickets under the lottery and
+ * stride schedulers, and is ignored by round robin and MLFQ. How soon a
+ * bottom half runs is therefore not bounded in general; a handler that must
+ * act on time, as the alarm does for due sleepers, should do a bounded
+ * amount of that work itself and defer only the rest.
+ * <p/>
+ * <p/>
+ * Bottom halves may block, but while one does no other bottom half runs.
+ */
+public class BottomHalf {
+    /**
+     * Allocate a new bottom-half runner and start its thread.
+     */
+    public BottomHalf() {
+        budget = Config.getInteger("BottomHalf.budget", 8);
+        Lib.assertTrue(budget > 0);
+        batch = new Work[budget];
+
+        thread = new KThread(new Runnable() {
+            public void run() {
+                runPending();
+            }
+        }).setName("bottom half");
+
+        boolean intStatus = Machine.interrupt().disable();
+        ThreadedKernel.scheduler.setPriority(thread,
+                Config.getInteger("BottomHalf.priority",
+                        PriorityScheduler.priorityMaximum));
+        Machine.interrupt().restore(intStatus);
+
+        thread.fork();
+    }
+
+    /**
+     * A bottom half. Carries its own link in the list of pending bottom
+     * halves, and whether it is on it.
+     */
+    public static abstract class Work implements Runnable {
+        private Work next = null;
+        private boolean pending = false;
+    }
+
+    /**
+     * Arrange for <i>work</i> to be run by the bottom-half thread, unless it
+     * is already pending. Must be called with interrupts disabled, as it is
+     * from an interrupt handler.
+     *
+     * @param    work    the bottom half to run.
+     */
+    public void schedule(Work work) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        if (work.pending)
+            return;
+        work.pending = true;
+        if (tail == null)
+            head = work;
+        else
+            tail.next = work;
+        tail = work;
+        scheduled++;
+
+        if (idle) {
+            idle = false;
+            thread.ready();
+        }
+    }
+
+    /**
+     * Return the most units of work a bottom half should do in one run.
+     *
+     * @return the per-round budget.
+     */
+    public int budget() {
+        return budget;
+    }
+
+    /**
+     * Print the number of bottom halves scheduled and run, and the number of
+     * rounds that ran out of budget.
+     */
+    public void print() {
+        System.out.println("bottom halves: scheduled " + scheduled
+                + ", ran " + ran + " in " + rounds + " rounds, "
+                + overBudget + " over budget");
+    }
+
+    /**
+     * The loop run by the bottom-half thread: take a batch of pending bottom
+     * halves, run them with interrupts enabled, and sleep when there are
+     * none left.
+     */
+    private void runPending() {
+        while (true) {
+            boolean intStatus = Machine.interrupt().disable();
+            while (head == null) {
+                idle = true;
+                KThread.sleep();
+            }
+            int n = 0;
+            for (; n < budget && head != null; n++) {
+                Work work = head;
+                head = work.next;
+                work.next = null;
+                work.pending = false;
+                batch[n] = work;
+            }
+            if (head == null)
+                tail = null;
+            boolean more = (head != null);
+            Machine.interrupt().restore(intStatus);
+
+            for (int i = 0; i < n; i++) {
+                Work work = batch[i];
+                batch[i] = null;
+                work.run();
+            }
+
+            rounds++;
+            ran += n;
+            if (more) {
+                overBudget++;
+                KThread.yield();
+            }
+        }
+    }
+
+    /**
+     * Test that bottom halves run with interrupts enabled, that scheduling a
+     * pending bottom half runs it once, and that each round runs at most
+     * <tt>budget()</tt> of them.
+     */
+    public static void selfTest() {
+        final BottomHalf bh = ThreadedKernel.bottomHalf;
+        final int[] runs = new int[2 * bh.budget() + 1];
+        Work[] works = new Work[runs.length];
+        for (int i = 0; i < works.length; i++) {
+            final int id = i;
+            works[i] = new Work() {
+                public void run() {
+                    Lib.assertTrue(Machine.interrupt().enabled());
+                    runs[id]++;
+                }
+            };
+        }
+
+        long rounds = bh.rounds;
+        boolean intStatus = Machine.interrupt().disable();
+        for (int i = 0; i < works.length; i++) {
+            bh.schedule(works[i]);
+            bh.schedule(works[i]);
+        }
+        Machine.interrupt().restore(intStatus);
+
+        while (bh.ran < bh.scheduled)
+            ThreadedKernel.alarm.waitUntil(100);
+        for (int i = 0; i < runs.length; i++)
+            Lib.assertTrue(runs[i] == 1);
+        Lib.assertTrue(bh.rounds - rounds >= 3);
+
+        bh.print();
+    }
+
+    private int budget;
+    /** The pending bottom halves, linked through <tt>Work.next</tt>. */
+    private Work head = null, tail = null;
+    private Work[] batch;
+    private KThread thread;
+    private boolean idle = false;
+
+    private long scheduled = 0, ran = 0, rounds = 0, overBudget = 0;
+}
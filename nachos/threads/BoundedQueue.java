@@ -0,0 +1,296 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+
+/**
+ * A synchronized queue of bounded size. Unlike a <tt>SynchList</tt>, its
+ * elements are kept in an array allocated up front, so adding one allocates
+ * nothing, and a thread adding to a full queue waits (or, with
+ * <tt>offer()</tt>, is refused) rather than letting the queue grow.
+ * <p/>
+ * <p/>
+ * Threads waiting for an element and threads waiting for room wait on
+ * separate condition variables, so each is only woken by the event it is
+ * waiting for. <tt>poll()</tt> waits with a timeout, by sleeping on the
+ * alarm; an element arriving cancels the sleep.
+ *
+ * @see    nachos.threads.SynchList
+ */
+public class BoundedQueue {
+    /**
+     * Allocate a new bounded queue.
+     *
+     * @param    capacity    the most elements the queue can hold.
+     */
+    public BoundedQueue(int capacity) {
+        Lib.assertTrue(capacity > 0);
+
+        elements = new Object[capacity];
+        lock = new Lock();
+        notEmpty = new Condition2(lock);
+        notFull = new Condition2(lock);
+    }
+
+    /**
+     * Add the specified object to the end of the queue, waiting until there
+     * is room if necessary.
+     *
+     * @param    o    the object to add. Must not be <tt>null</tt>.
+     */
+    public void put(Object o) {
+        Lib.assertTrue(o != null);
+
+        lock.acquire();
+        while (count == elements.length) {
+            putters++;
+            notFull.sleep();
+        }
+        add(o);
+        lock.release();
+    }
+
+    /**
+     * Add the specified object to the end of the queue if there is room.
+     *
+     * @param    o    the object to add. Must not be <tt>null</tt>.
+     * @return    <tt>true</tt> if the object was added, <tt>false</tt> if the
+     * queue was full.
+     */
+    public boolean offer(Object o) {
+        Lib.assertTrue(o != null);
+
+        lock.acquire();
+        boolean added = (count < elements.length);
+        if (added)
+            add(o);
+        lock.release();
+
+        return added;
+    }
+
+    /**
+     * Remove an object from the front of the queue, waiting until the queue
+     * is non-empty if necessary.
+     *
+     * @return the element removed from the front of the queue.
+     */
+    public Object take() {
+        lock.acquire();
+        while (count == 0) {
+            takers++;
+            notEmpty.sleep();
+        }
+        Object o = remove();
+        lock.release();
+
+        return o;
+    }
+
+    /**
+     * Remove an object from the front of the queue, waiting at most
+     * <i>timeout</i> ticks for the queue to become non-empty.
+     *
+     * @param    timeout    the most clock ticks to wait; 0 not to wait.
+     * @return the element removed from the front of the queue, or
+     * <tt>null</tt> if the queue was still empty.
+     */
+    public Object poll(long timeout) {
+        long deadline = Machine.timer().getTime() + timeout;
+        KThread thread = KThread.currentThread();
+
+        lock.acquire();
+        long remaining;
+        while (count == 0
+                && (remaining = deadline - Machine.timer().getTime()) > 0) {
+            // as in Condition2.sleep(), release the lock and sleep atomically
+            boolean intStatus = Machine.interrupt().disable();
+            pollers.add(thread);
+            lock.release();
+            ThreadedKernel.alarm.timedWait(remaining);
+            pollers.remove(thread);
+            Machine.interrupt().restore(intStatus);
+            lock.acquire();
+        }
+        Object o = (count == 0) ? null : remove();
+        lock.release();
+
+        return o;
+    }
+
+    /**
+     * Remove as many objects as are in the queue, up to the length of
+     * <i>batch</i>, without waiting.
+     *
+     * @param    batch    the array to store the removed elements in, in
+     * order.
+     * @return the number of elements removed.
+     */
+    public int drainTo(Object[] batch) {
+        lock.acquire();
+        int n = Math.min(count, batch.length);
+        for (int i = 0; i < n; i++)
+            batch[i] = remove();
+        lock.release();
+
+        return n;
+    }
+
+    /**
+     * Return the number of elements in the queue.
+     *
+     * @return the number of elements in the queue.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Append an element, which there must be room for, and wake a thread
+     * waiting for one. The lock must be held. A woken taker stops counting
+     * as waiting at once, so that a second element added before it runs
+     * wakes another taker or a poller.
+     */
+    private void add(Object o) {
+        elements[(head + count) % elements.length] = o;
+        count++;
+
+        if (takers > 0) {
+            takers--;
+            notEmpty.wake();
+        } else if (!pollers.isEmpty())
+            ThreadedKernel.alarm.cancel(pollers.removeFirst());
+    }
+
+    /**
+     * Remove the first element, which must exist, and wake a thread waiting
+     * for room. The lock must be held.
+     */
+    private Object remove() {
+        Object o = elements[head];
+        elements[head] = null;
+        head = (head + 1) % elements.length;
+        count--;
+
+        if (putters > 0) {
+            putters--;
+            notFull.wake();
+        }
+        return o;
+    }
+
+    private static class PingTest implements Runnable {
+        PingTest(BoundedQueue ping, BoundedQueue pong) {
+            this.ping = ping;
+            this.pong = pong;
+        }
+
+        public void run() {
+            for (int i = 0; i < 10; i++)
+                pong.put(ping.take());
+        }
+
+        private BoundedQueue ping;
+        private BoundedQueue pong;
+    }
+
+    private static class Producer implements Runnable {
+        Producer(BoundedQueue queue, int n) {
+            this.queue = queue;
+            this.n = n;
+        }
+
+        public void run() {
+            for (int i = 0; i < n; i++)
+                queue.put(i);
+        }
+
+        private BoundedQueue queue;
+        private int n;
+    }
+
+    /**
+     * Test that this module is working: pass elements back and forth, fill
+     * a small queue from a faster producer, drain it in batches, let
+     * <tt>poll()</tt> time out and be woken early, and check that an
+     * element added while a woken taker waits for the lock reaches a poller.
+     */
+    public static void selfTest() {
+        BoundedQueue ping = new BoundedQueue(1);
+        BoundedQueue pong = new BoundedQueue(1);
+
+        new KThread(new PingTest(ping, pong)).setName("ping").fork();
+
+        for (int i = 0; i < 10; i++) {
+            Integer o = new Integer(i);
+            ping.put(o);
+            Lib.assertTrue(pong.take() == o);
+        }
+
+        BoundedQueue queue = new BoundedQueue(4);
+        KThread producer = new KThread(new Producer(queue, 100))
+                .setName("producer");
+        producer.fork();
+        Object[] batch = new Object[3];
+        for (int next = 0; next < 100; ) {
+            Lib.assertTrue(((Integer) queue.take()) == next++);
+            Lib.assertTrue(queue.size() <= 4);
+            int n = queue.drainTo(batch);
+            for (int i = 0; i < n; i++)
+                Lib.assertTrue(((Integer) batch[i]) == next++);
+        }
+        producer.join();
+        Lib.assertTrue(queue.offer(1) && queue.offer(2) && queue.offer(3)
+                && queue.offer(4) && !queue.offer(5));
+        Lib.assertTrue(queue.drainTo(new Object[8]) == 4);
+
+        long start = Machine.timer().getTime();
+        Lib.assertTrue(queue.poll(1000) == null);
+        Lib.assertTrue(Machine.timer().getTime() - start >= 1000);
+
+        final BoundedQueue late = queue;
+        new KThread(new Runnable() {
+            public void run() {
+                ThreadedKernel.alarm.waitUntil(500);
+                late.put("late");
+            }
+        }).setName("late").fork();
+        start = Machine.timer().getTime();
+        Lib.assertTrue("late".equals(queue.poll(100000)));
+        Lib.assertTrue(Machine.timer().getTime() - start < 100000);
+
+        final Object[] taken = new Object[1];
+        KThread taker = new KThread(new Runnable() {
+            public void run() {
+                taken[0] = late.take();
+            }
+        }).setName("taker");
+        taker.fork();
+        new KThread(new Runnable() {
+            public void run() {
+                ThreadedKernel.alarm.waitUntil(500);
+                // queue a second put on the lock ahead of the woken taker
+                late.lock.acquire();
+                new KThread(new Producer(late, 1)).setName("second").fork();
+                KThread.yield();
+                late.add("first");
+                late.lock.release();
+            }
+        }).setName("late").fork();
+        start = Machine.timer().getTime();
+        Object polled = queue.poll(100000);
+        taker.join();
+        Lib.assertTrue(polled != null && taken[0] != null);
+        Lib.assertTrue(Machine.timer().getTime() - start < 100000);
+    }
+
+    private Object[] elements;
+    private int head = 0, count = 0;
+
+    private Lock lock;
+    private Condition2 notEmpty, notFull;
+    private int takers = 0, putters = 0;
+    /** Threads waiting in <tt>poll()</tt>, sleeping on the alarm. */
+    private LinkedList<KThread> pollers = new LinkedList<KThread>();
+}
@@ -0,0 +1,517 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+
+/**
+ * A <i>channel</i> passes 32-bit words from speaking threads to listening
+ * threads, in order. A channel with a capacity of 0 works like a
+ * <tt>Communicator</tt>: a speaker does not return until a listener has
+ * taken its word. A channel with a capacity of <i>N</i> buffers up to
+ * <i>N</i> words in a ring, so that a speaker only waits while the buffer is
+ * full and a listener only waits while it is empty.
+ * <p/>
+ * <p/>
+ * A word is handed straight to a waiting listener, and a listener that takes
+ * a word from a full buffer moves the word of a waiting speaker into it, so
+ * a thread that waits is woken exactly once, with its transfer done. Words
+ * can also be passed in batches, which costs one trip into the channel per
+ * batch rather than per word, and without waiting, with <tt>trySpeak()</tt>
+ * and <tt>tryListen()</tt>. <tt>select()</tt> listens on several channels at
+ * once.
+ *
+ * @see    nachos.threads.Communicator
+ */
+public class Channel {
+    /**
+     * Allocate a new channel.
+     *
+     * @param    capacity    the number of words the channel can hold with
+     * no listener to take them, or 0 for a rendezvous channel.
+     */
+    public Channel(int capacity) {
+        Lib.assertTrue(capacity >= 0);
+        this.capacity = capacity;
+        buffer = new int[capacity];
+    }
+
+    /**
+     * Pass <i>word</i> to a listener, waiting until a listener takes it or,
+     * if the channel has a buffer, until there is room for it.
+     *
+     * @param    word    the integer to transfer.
+     */
+    public void speak(int word) {
+        boolean intStatus = Machine.interrupt().disable();
+
+        if (!give(word))
+            waitToSpeak(word);
+
+        Machine.interrupt().charge("channel");
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Pass all of <i>words</i>, in order, waiting as <tt>speak(int)</tt>
+     * would whenever one cannot be passed yet. Words from other speakers may
+     * come between them.
+     *
+     * @param    words    the integers to transfer.
+     */
+    public void speak(int[] words) {
+        boolean intStatus = Machine.interrupt().disable();
+
+        int i = 0;
+        while (i < words.length) {
+            if (handToWaiter(words[i]))
+                i++;
+            else if (count < capacity)
+                i += put(words, i, words.length - i);
+            else
+                waitToSpeak(words[i++]);
+        }
+
+        Machine.interrupt().charge("channel");
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Pass <i>word</i> to a listener if that can be done without waiting.
+     *
+     * @param    word    the integer to transfer.
+     * @return    <tt>true</tt> if the word was passed.
+     */
+    public boolean trySpeak(int word) {
+        boolean intStatus = Machine.interrupt().disable();
+
+        boolean given = give(word);
+
+        Machine.interrupt().charge("channel");
+        Machine.interrupt().restore(intStatus);
+        return given;
+    }
+
+    /**
+     * Wait for a word and return it.
+     *
+     * @return the integer transferred.
+     */
+    public int listen() {
+        boolean intStatus = Machine.interrupt().disable();
+
+        int word = available() ? take() : waitToListen();
+
+        Machine.interrupt().charge("channel");
+        Machine.interrupt().restore(intStatus);
+        return word;
+    }
+
+    /**
+     * Wait for at least one word, then receive up to <i>n</i> words, as many
+     * as can be had without waiting again.
+     *
+     * @param    words    the array to store the words in.
+     * @param    n    the most words to receive.
+     * @return the number of words received, at least 1.
+     */
+    public int listen(int[] words, int n) {
+        Lib.assertTrue(n > 0 && n <= words.length);
+
+        boolean intStatus = Machine.interrupt().disable();
+
+        int got = 0;
+        if (!available())
+            words[got++] = waitToListen();
+        got += receive(words, got, n - got);
+
+        Machine.interrupt().charge("channel");
+        Machine.interrupt().restore(intStatus);
+        return got;
+    }
+
+    /**
+     * Receive a word if one can be had without waiting.
+     *
+     * @param    word    a one-element array to store the word in.
+     * @return    <tt>true</tt> if a word was received.
+     */
+    public boolean tryListen(int[] word) {
+        boolean intStatus = Machine.interrupt().disable();
+
+        boolean got = available();
+        if (got)
+            word[0] = take();
+
+        Machine.interrupt().charge("channel");
+        Machine.interrupt().restore(intStatus);
+        return got;
+    }
+
+    /**
+     * Wait for a word on any of the specified channels and receive it. If
+     * several channels have a word, the first of them in <i>channels</i> is
+     * used.
+     *
+     * @param    channels    the channels to listen on.
+     * @param    word    a one-element array to store the word in.
+     * @return the index in <i>channels</i> of the channel the word came
+     * from.
+     */
+    public static int select(Channel[] channels, int[] word) {
+        boolean intStatus = Machine.interrupt().disable();
+
+        for (int i = 0; i < channels.length; i++) {
+            if (channels[i].available()) {
+                word[0] = channels[i].take();
+                Machine.interrupt().charge("channel");
+                Machine.interrupt().restore(intStatus);
+                return i;
+            }
+        }
+
+        Selection selection = new Selection(KThread.currentThread());
+        for (int i = 0; i < channels.length; i++)
+            channels[i].selectors.add(selection);
+        KThread.sleep();
+
+        int index = -1;
+        for (int i = 0; i < channels.length; i++) {
+            channels[i].selectors.remove(selection);
+            if (channels[i] == selection.channel && index < 0)
+                index = i;
+        }
+        word[0] = selection.word;
+
+        Machine.interrupt().charge("channel");
+        Machine.interrupt().restore(intStatus);
+        return index;
+    }
+
+    /**
+     * Pass a word to a waiting listener or into the buffer.
+     *
+     * @return    <tt>false</tt> if the speaker has to wait.
+     */
+    private boolean give(int word) {
+        if (handToWaiter(word))
+            return true;
+        if (count == capacity)
+            return false;
+        buffer[(head + count) % capacity] = word;
+        count++;
+        return true;
+    }
+
+    /**
+     * Pass a word straight to a listener or a selecting thread that is
+     * waiting for one, and wake it.
+     *
+     * @return    <tt>false</tt> if no thread was waiting.
+     */
+    private boolean handToWaiter(int word) {
+        if (waitingListeners > 0) {
+            KThread listener = listenQueue.nextThread();
+            waitingListeners--;
+            listener.channelWord = word;
+            listener.ready();
+            return true;
+        }
+        while (!selectors.isEmpty()) {
+            Selection selection = selectors.removeFirst();
+            if (selection.channel == null) {
+                selection.channel = this;
+                selection.word = word;
+                selection.thread.ready();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copy up to <i>n</i> words from <i>words</i> into the buffer, as many as
+     * there is room for.
+     *
+     * @return the number of words copied.
+     */
+    private int put(int[] words, int offset, int n) {
+        n = Math.min(n, capacity - count);
+        int tail = (head + count) % capacity;
+        int first = Math.min(n, capacity - tail);
+        System.arraycopy(words, offset, buffer, tail, first);
+        System.arraycopy(words, offset + first, buffer, 0, n - first);
+        count += n;
+        return n;
+    }
+
+    /**
+     * Wait as a speaker until a listener takes <i>word</i>.
+     */
+    private void waitToSpeak(int word) {
+        KThread thread = KThread.currentThread();
+        thread.channelWord = word;
+        waitingSpeakers++;
+        speakQueue.waitForAccess(thread);
+        KThread.sleep();
+    }
+
+    /**
+     * Test whether a word can be received without waiting.
+     */
+    private boolean available() {
+        return count > 0 || waitingSpeakers > 0;
+    }
+
+    /**
+     * Receive one word, which must be available.
+     */
+    private int take() {
+        if (count > 0) {
+            int word = buffer[head];
+            head = (head + 1) % capacity;
+            count--;
+            refill();
+            return word;
+        }
+        KThread speaker = speakQueue.nextThread();
+        waitingSpeakers--;
+        speaker.ready();
+        return speaker.channelWord;
+    }
+
+    /**
+     * Receive up to <i>n</i> words into <i>words</i>, as many as are
+     * available.
+     *
+     * @return the number of words received.
+     */
+    private int receive(int[] words, int offset, int n) {
+        int got = 0;
+        while (got < n && available()) {
+            if (count == 0) {
+                words[offset + got++] = take();
+                continue;
+            }
+            int m = Math.min(n - got, count);
+            int first = Math.min(m, capacity - head);
+            System.arraycopy(buffer, head, words, offset + got, first);
+            System.arraycopy(buffer, 0, words, offset + got + first, m - first);
+            head = (head + m) % capacity;
+            count -= m;
+            got += m;
+            refill();
+        }
+        return got;
+    }
+
+    /**
+     * Move the words of waiting speakers into the buffer while there is room,
+     * and wake the speakers.
+     */
+    private void refill() {
+        while (waitingSpeakers > 0 && count < capacity) {
+            KThread speaker = speakQueue.nextThread();
+            waitingSpeakers--;
+            buffer[(head + count) % capacity] = speaker.channelWord;
+            count++;
+            speaker.ready();
+        }
+    }
+
+    /**
+     * Wait as a listener until a speaker hands over a word.
+     */
+    private int waitToListen() {
+        KThread thread = KThread.currentThread();
+        waitingListeners++;
+        listenQueue.waitForAccess(thread);
+        KThread.sleep();
+        return thread.channelWord;
+    }
+
+    /**
+     * Test rendezvous and buffered channels with several speakers and
+     * listeners, batches, the non-blocking operations and <tt>select()</tt>,
+     * then measure throughput.
+     */
+    public static void selfTest() {
+        System.out.println("Channel test #1 begin.");
+        for (int capacity = 0; capacity <= 4; capacity += 4) {
+            Channel channel = new Channel(capacity);
+            KThread[] speakers = new KThread[3];
+            for (int i = 0; i < speakers.length; i++) {
+                speakers[i] = new KThread(new Speaker(channel, i * 100, 50, 1))
+                        .setName("speaker" + i);
+                speakers[i].fork();
+            }
+            int sum = 0;
+            int[] last = {-1, -1, -1};
+            for (int i = 0; i < 150; i++) {
+                int word = channel.listen();
+                // each speaker's words arrive in order
+                Lib.assertTrue(word > last[word / 100]);
+                last[word / 100] = word;
+                sum += word;
+            }
+            Lib.assertTrue(sum == 3 * (49 * 50 / 2) + 50 * (100 + 200));
+            for (int i = 0; i < speakers.length; i++)
+                speakers[i].join();
+        }
+        System.out.println("Channel test #1 end.");
+
+        System.out.println("Channel test #2 begin.");
+        for (int capacity = 0; capacity <= 8; capacity += 8) {
+            Channel channel = new Channel(capacity);
+            KThread speaker = new KThread(new Speaker(channel, 0, 100, 7))
+                    .setName("batch speaker");
+            speaker.fork();
+            int[] words = new int[5];
+            int next = 0;
+            while (next < 100) {
+                int got = channel.listen(words, words.length);
+                Lib.assertTrue(got >= 1 && got <= words.length);
+                for (int i = 0; i < got; i++)
+                    Lib.assertTrue(words[i] == next++);
+            }
+            speaker.join();
+        }
+        System.out.println("Channel test #2 end.");
+
+        System.out.println("Channel test #3 begin.");
+        Channel rendezvous = new Channel(0);
+        Channel buffered = new Channel(2);
+        int[] word = new int[1];
+        Lib.assertTrue(!rendezvous.trySpeak(1));
+        Lib.assertTrue(!rendezvous.tryListen(word));
+        Lib.assertTrue(buffered.trySpeak(1) && buffered.trySpeak(2));
+        Lib.assertTrue(!buffered.trySpeak(3));
+        Lib.assertTrue(buffered.tryListen(word) && word[0] == 1);
+        Lib.assertTrue(buffered.tryListen(word) && word[0] == 2);
+        Lib.assertTrue(!buffered.tryListen(word));
+        System.out.println("Channel test #3 end.");
+
+        System.out.println("Channel test #4 begin.");
+        Channel[] channels = {new Channel(0), new Channel(0), new Channel(3)};
+        KThread[] speakers = new KThread[channels.length];
+        for (int i = 0; i < channels.length; i++) {
+            speakers[i] = new KThread(new Speaker(channels[i], i * 100, 20, 1))
+                    .setName("select speaker" + i);
+            speakers[i].fork();
+        }
+        int[] received = new int[channels.length];
+        for (int i = 0; i < 60; i++) {
+            int index = select(channels, word);
+            Lib.assertTrue(word[0] == index * 100 + received[index]);
+            received[index]++;
+        }
+        for (int i = 0; i < channels.length; i++)
+            speakers[i].join();
+        System.out.println("Channel test #4 end.");
+
+        throughputBenchmark(0, 1, 10000);
+        throughputBenchmark(16, 1, 10000);
+        throughputBenchmark(64, 16, 10000);
+    }
+
+    /**
+     * Pass <i>words</i> words from one thread to another through a channel of
+     * the specified capacity, in batches of <i>batch</i> words, and print the
+     * words passed per 1000 simulated ticks and per second of host time.
+     *
+     * @param    capacity    the capacity of the channel.
+     * @param    batch    the number of words spoken and listened for at a
+     * time; 1 uses <tt>speak(int)</tt> and <tt>listen()</tt>.
+     * @param    words    the number of words to pass.
+     */
+    public static void throughputBenchmark(int capacity, int batch,
+                                           int words) {
+        Channel channel = new Channel(capacity);
+        KThread speaker = new KThread(new Speaker(channel, 0, words, batch))
+                .setName("channel benchmark");
+
+        long startTicks = Machine.timer().getTime();
+        long startNanos = System.nanoTime();
+        speaker.fork();
+
+        int[] received = new int[batch];
+        for (int got = 0; got < words; ) {
+            if (batch == 1) {
+                channel.listen();
+                got++;
+            } else {
+                got += channel.listen(received, batch);
+            }
+        }
+        speaker.join();
+
+        long ticks = Machine.timer().getTime() - startTicks;
+        long nanos = System.nanoTime() - startNanos;
+        System.out.println("channel capacity=" + capacity + " batch=" + batch
+                + " words=" + words
+                + " words_per_1000_ticks="
+                + String.format("%.1f", words * 1000.0 / ticks)
+                + " words_per_host_second="
+                + String.format("%.0f", words * 1e9 / nanos));
+    }
+
+    private static class Speaker implements Runnable {
+        Speaker(Channel channel, int first, int words, int batch) {
+            this.channel = channel;
+            this.first = first;
+            this.words = words;
+            this.batch = batch;
+        }
+
+        public void run() {
+            if (batch == 1) {
+                for (int i = 0; i < words; i++)
+                    channel.speak(first + i);
+                return;
+            }
+            int[] buf = new int[batch];
+            for (int i = 0; i < words; i += batch) {
+                int n = Math.min(batch, words - i);
+                for (int j = 0; j < n; j++)
+                    buf[j] = first + i + j;
+                if (n == batch) {
+                    channel.speak(buf);
+                } else {
+                    int[] rest = new int[n];
+                    System.arraycopy(buf, 0, rest, 0, n);
+                    channel.speak(rest);
+                }
+            }
+        }
+
+        private Channel channel;
+        private int first, words, batch;
+    }
+
+    /**
+     * A thread waiting in <tt>select()</tt>, and the word it was given. It
+     * is on the selector list of every channel it waits on; the first
+     * speaker to find it there sets <tt>channel</tt>, and later speakers
+     * skip it.
+     */
+    private static class Selection {
+        Selection(KThread thread) {
+            this.thread = thread;
+        }
+
+        KThread thread;
+        Channel channel = null;
+        int word;
+    }
+
+    private int capacity;
+    private int[] buffer;
+    private int head = 0, count = 0;
+
+    private int waitingSpeakers = 0, waitingListeners = 0;
+    private ThreadQueue speakQueue =
+            ThreadedKernel.scheduler.newThreadQueue(false, "Channel");
+    private ThreadQueue listenQueue =
+            ThreadedKernel.scheduler.newThreadQueue(false, "Channel");
+    private LinkedList<Selection> selectors = new LinkedList<Selection>();
+}
@@ -2,10 +2,9 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.LinkedList;
-
 /**
- * An implementation of condition variables built upon semaphores.
+ * An implementation of condition variables that hands threads directly to the
+ * scheduler.
  * <p/>
  * <p/>
  * A condition variable is a synchronization primitive that does not have
@@ -48,6 +47,11 @@ import java.util.LinkedList;
  * can acquire the lock and change data structures, before the woken thread
  * gets a chance to run. The advance to Mesa-style semantics is that it is a
  * lot easier to implement.
+ * <p/>
+ * <p/>
+ * The sleeping threads are kept in a FIFO list linked through the threads
+ * themselves (a thread sleeps on at most one condition variable at a time),
+ * so sleeping and waking allocate nothing.
  */
 public class Condition {
     /**
@@ -60,8 +64,6 @@ public class Condition {
      */
     public Condition(Lock conditionLock) {
         this.conditionLock = conditionLock;
-
-        waitQueue = new LinkedList<Semaphore>();
     }
 
     /**
@@ -71,20 +73,28 @@ public class Condition {
      * automatically reacquire the lock before <tt>sleep()</tt> returns.
      * <p/>
      * <p/>
-     * This implementation uses semaphores to implement this, by allocating a
-     * semaphore for each waiting thread. The waker will <tt>V()</tt> this
-     * semaphore, so thre is no chance the sleeper will miss the wake-up, even
-     * though the lock is released before caling <tt>P()</tt>.
+     * Interrupts stay disabled from adding the thread to the list until it
+     * goes to sleep, so there is no chance the sleeper will miss the wake-up,
+     * even though the lock is released before it sleeps.
      */
     public void sleep() {
         Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-        Semaphore waiter = new Semaphore(0);
-        waitQueue.add(waiter);
+        boolean intStatus = Machine.interrupt().disable();
+
+        KThread thread = KThread.currentThread();
+        thread.conditionNext = null;
+        if (tail == null)
+            head = thread;
+        else
+            tail.conditionNext = thread;
+        tail = thread;
 
         conditionLock.release();
-        waiter.P();
+        KThread.sleep();
         conditionLock.acquire();
+
+        Machine.interrupt().restore(intStatus);
     }
 
     /**
@@ -94,8 +104,18 @@ public class Condition {
     public void wake() {
         Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-        if (!waitQueue.isEmpty())
-            ((Semaphore) waitQueue.removeFirst()).V();
+        boolean intStatus = Machine.interrupt().disable();
+
+        KThread thread = head;
+        if (thread != null) {
+            head = thread.conditionNext;
+            if (head == null)
+                tail = null;
+            thread.conditionNext = null;
+            thread.ready();
+        }
+
+        Machine.interrupt().restore(intStatus);
     }
 
     /**
@@ -105,10 +125,68 @@ public class Condition {
     public void wakeAll() {
         Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-        while (!waitQueue.isEmpty())
+        while (head != null)
             wake();
     }
 
     private Lock conditionLock;
-    private LinkedList<Semaphore> waitQueue;
+    private KThread head = null, tail = null;
+
+    private static class PingTest implements Runnable {
+        PingTest(Lock lock, Condition cond, int[] turn, int me, int rounds) {
+            this.lock = lock;
+            this.cond = cond;
+            this.turn = turn;
+            this.me = me;
+            this.rounds = rounds;
+        }
+
+        public void run() {
+            lock.acquire();
+            for (int i = 0; i < rounds; i++) {
+                while (turn[0] != me)
+                    cond.sleep();
+                turn[0] = 1 - me;
+                cond.wake();
+            }
+            lock.release();
+        }
+
+        private Lock lock;
+        private Condition cond;
+        private int[] turn;
+        private int me, rounds;
+    }
+
+    /**
+     * Pass the turn back and forth between two threads <tt>rounds</tt> times
+     * through a condition variable, and return the host nanoseconds per
+     * hand-off.
+     */
+    private static long pingPong(Condition cond, Lock lock, int rounds) {
+        int[] turn = {0};
+        KThread pong = new KThread(new PingTest(lock, cond, turn, 1, rounds))
+                .setName("pong");
+
+        long start = System.nanoTime();
+        pong.fork();
+        new PingTest(lock, cond, turn, 0, rounds).run();
+        pong.join();
+        return (System.nanoTime() - start) / (2 * rounds);
+    }
+
+    /**
+     * Tests whether this module is working, and prints the host cost of a
+     * hand-off.
+     */
+    public static void selfTest() {
+        System.out.println("Begin Condition test");
+
+        int rounds = 20000;
+        Lock lock = new Lock();
+        System.out.println("condition handoff_ns "
+                + pingPong(new Condition(lock), lock, rounds));
+
+        System.out.println("End Condition test");
+    }
 }
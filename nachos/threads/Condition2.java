@@ -28,7 +28,7 @@ public class Condition2 {
 
         // For Q2
         // Get Thread queue and do not transfer priority.
-        this.waitList = ThreadedKernel.scheduler.newThreadQueue(true);
+        this.waitList = ThreadedKernel.scheduler.newThreadQueue(true, "Condition2");
 
         this.conditionLock = conditionLock;
     }
@@ -38,6 +38,11 @@ public class Condition2 {
      * variable until another thread wakes it using <tt>wake()</tt>. The
      * current thread must hold the associated lock. The thread will
      * automatically reacquire the lock before <tt>sleep()</tt> returns.
+     * <p/>
+     * <p/>
+     * A woken thread is not readied to compete for the lock; it is moved
+     * straight onto the lock's wait queue, and runs again only once it has
+     * been given the lock.
      */
     public void sleep() {
         Lib.assertTrue(conditionLock.isHeldByCurrentThread());
@@ -48,13 +53,15 @@ public class Condition2 {
         waitList.waitForAccess(KThread.currentThread());
         KThread.currentThread().sleep();
 
-        conditionLock.acquire();
+        Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+        Machine.interrupt().charge("condition");
         Machine.interrupt().restore(intStatus);
     }
 
     /**
      * Wake up at most one thread sleeping on this condition variable. The
-     * current thread must hold the associated lock.
+     * current thread must hold the associated lock. The woken thread waits
+     * for the lock, donating priority to its holder, until it is released.
      */
     public void wake() {
 
@@ -63,14 +70,16 @@ public class Condition2 {
         boolean intStatus = Machine.interrupt().disable();
         KThread nextThread = waitList.nextThread();
         if(nextThread != null) {
-            nextThread.ready();
+            conditionLock.requeue(nextThread);
         }
+        Machine.interrupt().charge("condition");
         Machine.interrupt().restore(intStatus);
     }
 
     /**
      * Wake up all threads sleeping on this condition variable. The current
-     * thread must hold the associated lock.
+     * thread must hold the associated lock. The woken threads are moved onto
+     * the lock's wait queue, and run one at a time as the lock is handed on.
      */
     public void wakeAll() {
 
@@ -79,9 +88,10 @@ public class Condition2 {
         boolean intStatus = Machine.interrupt().disable();
         KThread nextThread = waitList.nextThread();
         while (nextThread != null) {
-            nextThread.ready();
+            conditionLock.requeue(nextThread);
             nextThread = waitList.nextThread();
         }
+        Machine.interrupt().charge("condition");
         Machine.interrupt().restore(intStatus);
     }
 
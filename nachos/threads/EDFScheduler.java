@@ -0,0 +1,391 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.HashMap;
+
+/**
+ * A priority scheduler with an earliest-deadline-first real-time class.
+ * <p/>
+ * <p/>
+ * A thread registered with <tt>setRealTime()</tt> is released once per
+ * period and must finish each job within its relative deadline; it ends a
+ * job by calling <tt>waitForNextPeriod()</tt>, which sleeps on the alarm
+ * until the next release. Whenever a real-time thread is waiting, the one
+ * with the earliest absolute deadline is dequeued first; otherwise threads
+ * are chosen exactly as by <tt>PriorityScheduler</tt>.
+ * <p/>
+ * <p/>
+ * A new real-time thread is admitted only if the sum over all real-time
+ * threads of budget / min(period, deadline) stays at most 1, which is
+ * sufficient for EDF to meet every deadline. While real-time, a thread's
+ * priority is raised to the maximum, so it still donates through locks and
+ * joins. A thread stops being real-time when it finishes. Finished jobs and
+ * deadline misses are counted in <tt>Stats</tt> and printed when the machine
+ * halts.
+ * <p/>
+ * <p/>
+ * On every timer interrupt, the current thread is preempted if a ready
+ * real-time thread has an earlier deadline than its job, or, when no
+ * real-time thread is ready, if a ready thread has a higher priority. A
+ * CPU-bound thread therefore cannot hold off a released job, nor the
+ * bottom-half thread.
+ */
+public class EDFScheduler extends PriorityScheduler {
+    /**
+     * Allocate a new EDF scheduler.
+     */
+    public EDFScheduler() {
+    }
+
+    /**
+     * Allocate a new EDF thread queue.
+     *
+     * @param    transferPriority    <tt>true</tt> if this queue should
+     * transfer priority from waiting threads
+     * to the owning thread.
+     * @return a new EDF thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+        return new EDFQueue(transferPriority);
+    }
+
+    /**
+     * Allocate the ready queue, and remember it so that timer interrupts can
+     * compare the waiting threads with the current one.
+     *
+     * @return a new ready queue.
+     */
+    protected ThreadQueue createReadyQueue() {
+        readyQueue = new EDFQueue(false);
+        return readyQueue;
+    }
+
+    /**
+     * Preempt the current thread if a ready real-time thread has an earlier
+     * deadline, or if no real-time thread is ready and a ready thread has a
+     * higher effective priority.
+     */
+    public boolean timerInterrupt() {
+        if (readyQueue == null)
+            return false;
+
+        KThread current = KThread.currentThread();
+        if (readyQueue.size > 0) {
+            RealTime rt = realTime.get(current);
+            return rt == null
+                    || readyQueue.heap[0].absDeadline < rt.absDeadline;
+        }
+        ThreadState next = readyQueue.pickNextThread();
+        return next != null && next.getEffectivePriority()
+                > getThreadState(current).getEffectivePriority();
+    }
+
+    /**
+     * Release the share of the processor held by a finishing real-time
+     * thread.
+     */
+    public void finishingThread(KThread thread) {
+        clearRealTime(thread);
+    }
+
+    public boolean setRealTime(KThread thread, long period, long deadline,
+                               long budget) {
+        Lib.assertTrue(period > 0 && deadline > 0 && budget > 0);
+
+        boolean intStatus = Machine.interrupt().disable();
+
+        RealTime old = realTime.get(thread);
+        double others = totalDensity - (old == null ? 0 : old.density);
+        double density = (double) budget / Math.min(period, deadline);
+        if (others + density > 1.0) {
+            Machine.interrupt().restore(intStatus);
+            return false;
+        }
+
+        if (old != null)
+            clearRealTime(thread);
+
+        RealTime rt = new RealTime(thread, period, deadline, density);
+        rt.oldPriority = getPriority(thread);
+        rt.release = Machine.timer().getTime();
+        rt.absDeadline = rt.release + deadline;
+        realTime.put(thread, rt);
+        totalDensity += density;
+        setPriority(thread, priorityMaximum);
+
+        // a thread that is already waiting joins its queue's deadline heap
+        PriorityQueue queue = getThreadState(thread).queue;
+        if (queue instanceof EDFQueue)
+            ((EDFQueue) queue).push(rt);
+
+        Machine.interrupt().restore(intStatus);
+        return true;
+    }
+
+    public void clearRealTime(KThread thread) {
+        boolean intStatus = Machine.interrupt().disable();
+
+        RealTime rt = realTime.remove(thread);
+        if (rt != null) {
+            if (rt.queue != null)
+                rt.queue.remove(rt.index);
+            totalDensity -= rt.density;
+            setPriority(thread, rt.oldPriority);
+        }
+
+        Machine.interrupt().restore(intStatus);
+    }
+
+    public void waitForNextPeriod() {
+        Lib.assertTrue(Machine.interrupt().enabled());
+
+        boolean intStatus = Machine.interrupt().disable();
+        RealTime rt = realTime.get(KThread.currentThread());
+        if (rt == null) {
+            Machine.interrupt().restore(intStatus);
+            return;
+        }
+
+        long now = Machine.timer().getTime();
+        Machine.stats().numRealTimeJobs++;
+        if (now > rt.absDeadline)
+            Machine.stats().numDeadlineMisses++;
+
+        rt.release += rt.period;
+        rt.absDeadline = rt.release + rt.deadline;
+        Machine.interrupt().restore(intStatus);
+
+        if (rt.release > now)
+            ThreadedKernel.alarm.waitUntil(rt.release - now);
+    }
+
+    /**
+     * A <tt>PriorityQueue</tt> that also keeps its real-time waiters in a
+     * binary min-heap on absolute deadline. Real-time waiters stay on the
+     * priority lists too, so donation is unchanged, but the heap decides
+     * which thread is dequeued first.
+     */
+    protected class EDFQueue extends PriorityQueue {
+        EDFQueue(boolean transferPriority) {
+            super(transferPriority);
+        }
+
+        public void waitForAccess(KThread thread) {
+            super.waitForAccess(thread);
+
+            RealTime rt = realTime.get(thread);
+            if (rt != null)
+                push(rt);
+        }
+
+        public KThread nextThread() {
+            KThread thread = super.nextThread();
+            if (size > 0 && heap[0].thread == thread)
+                remove(0);
+            return thread;
+        }
+
+        protected ThreadState pickNextThread() {
+            if (size > 0)
+                return getThreadState(heap[0].thread);
+            return super.pickNextThread();
+        }
+
+        private void push(RealTime rt) {
+            if (size == heap.length) {
+                RealTime[] grown = new RealTime[heap.length * 2];
+                System.arraycopy(heap, 0, grown, 0, size);
+                heap = grown;
+            }
+            rt.queue = this;
+            rt.sequence = sequence++;
+            heap[size] = rt;
+            siftDown(siftUp(size++));
+        }
+
+        private void remove(int pos) {
+            RealTime rt = heap[pos];
+            rt.queue = null;
+            heap[pos] = heap[--size];
+            heap[size] = null;
+            if (pos < size)
+                siftDown(siftUp(pos));
+        }
+
+        private boolean before(RealTime a, RealTime b) {
+            if (a.absDeadline != b.absDeadline)
+                return a.absDeadline < b.absDeadline;
+            return a.sequence < b.sequence;
+        }
+
+        private int siftUp(int pos) {
+            RealTime rt = heap[pos];
+            while (pos > 0) {
+                int up = (pos - 1) >> 1;
+                if (!before(rt, heap[up]))
+                    break;
+                place(heap[up], pos);
+                pos = up;
+            }
+            place(rt, pos);
+            return pos;
+        }
+
+        private void siftDown(int pos) {
+            RealTime rt = heap[pos];
+            while (2 * pos + 1 < size) {
+                int child = 2 * pos + 1;
+                if (child + 1 < size && before(heap[child + 1], heap[child]))
+                    child++;
+                if (!before(heap[child], rt))
+                    break;
+                place(heap[child], pos);
+                pos = child;
+            }
+            place(rt, pos);
+        }
+
+        private void place(RealTime rt, int pos) {
+            heap[pos] = rt;
+            rt.index = pos;
+        }
+
+        private RealTime[] heap = new RealTime[4];
+        private int size = 0;
+        private long sequence = 0;
+    }
+
+    /**
+     * The real-time parameters of a thread, its current job, and its place
+     * in the deadline heap of the queue it is waiting on, if any.
+     */
+    private static class RealTime {
+        RealTime(KThread thread, long period, long deadline, double density) {
+            this.thread = thread;
+            this.period = period;
+            this.deadline = deadline;
+            this.density = density;
+        }
+
+        KThread thread;
+        long period, deadline;
+        double density;
+        int oldPriority;
+
+        long release, absDeadline;
+
+        EDFQueue queue = null;
+        int index;
+        long sequence;
+    }
+
+    private HashMap<KThread, RealTime> realTime =
+            new HashMap<KThread, RealTime>();
+    private double totalDensity = 0;
+    private EDFQueue readyQueue = null;
+
+    private static class PeriodicTest implements Runnable {
+        PeriodicTest(long period, long budget) {
+            this.period = period;
+            this.budget = budget;
+        }
+
+        public void run() {
+            KThread self = KThread.currentThread();
+            if (!ThreadedKernel.scheduler.setRealTime(self, period, period,
+                    budget)) {
+                System.out.println(self.getName() + " rejected");
+                return;
+            }
+            for (int job = 0; job < 5; job++) {
+                long start = Machine.timer().getTime();
+                while (Machine.timer().getTime() - start < budget) {
+                    Machine.interrupt().disable();
+                    Machine.interrupt().enable();
+                }
+                ThreadedKernel.scheduler.waitForNextPeriod();
+            }
+            System.out.println(self.getName() + " done");
+        }
+
+        private long period, budget;
+    }
+
+    private static class SpinTest implements Runnable {
+        SpinTest(long ticks) {
+            this.ticks = ticks;
+        }
+
+        public void run() {
+            long start = Machine.timer().getTime();
+            while (Machine.timer().getTime() - start < ticks) {
+                Machine.interrupt().disable();
+                Machine.interrupt().enable();
+            }
+            System.out.println(KThread.currentThread().getName() + " done");
+        }
+
+        private long ticks;
+    }
+
+    /**
+     * Check that making a waiting thread real-time, or changing the deadline
+     * of a waiting real-time thread, moves it to its place in the queue.
+     */
+    private static void requeueTest() {
+        EDFScheduler scheduler = new EDFScheduler();
+
+        boolean intStatus = Machine.interrupt().disable();
+        ThreadQueue queue = scheduler.newThreadQueue(false);
+        KThread a = new KThread(), b = new KThread();
+        a.schedulingState = b.schedulingState = null;
+        queue.waitForAccess(a);
+        queue.waitForAccess(b);
+
+        Lib.assertTrue(scheduler.setRealTime(a, 1000, 1000, 100));
+        Lib.assertTrue(scheduler.setRealTime(b, 1000, 500, 100));
+        Lib.assertTrue(scheduler.setRealTime(a, 1000, 200, 100));
+        Lib.assertTrue(queue.nextThread() == a);
+        Lib.assertTrue(queue.nextThread() == b);
+
+        scheduler.clearRealTime(a);
+        scheduler.clearRealTime(b);
+        Lib.assertTrue(scheduler.realTime.isEmpty()
+                && scheduler.totalDensity < 1e-9);
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Tests whether this module is working. Must run with
+     * <tt>EDFScheduler</tt> as the kernel scheduler.
+     */
+    public static void selfTest() {
+        System.out.println("Begin EDF test");
+
+        requeueTest();
+
+        int misses = Machine.stats().numDeadlineMisses;
+        KThread[] threads = {
+                new KThread(new PeriodicTest(4000, 1000)).setName("rt_a"),
+                new KThread(new PeriodicTest(6000, 2000)).setName("rt_b"),
+                new KThread(new PeriodicTest(2000, 1000)).setName("rt_c"),
+        };
+        for (int i = 0; i < threads.length; i++)
+            threads[i].fork();
+
+        // a CPU-bound competitor that runs while the jobs are released
+        KThread spinner = new KThread(new SpinTest(40000)).setName("cpu");
+        spinner.fork();
+        for (int i = 0; i < threads.length; i++)
+            threads[i].join();
+        spinner.join();
+
+        EDFScheduler scheduler = (EDFScheduler) ThreadedKernel.scheduler;
+        misses = Machine.stats().numDeadlineMisses - misses;
+        System.out.println("deadline misses " + misses);
+        Lib.assertTrue(misses == 0 && scheduler.realTime.isEmpty());
+
+        System.out.println("End EDF test");
+    }
+}
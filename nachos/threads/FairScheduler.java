@@ -0,0 +1,139 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A scheduler that orders threads by the virtual runtime they have
+ * accumulated.
+ * <p/>
+ * <p/>
+ * Every thread has a weight, set with <tt>setPriority()</tt>. While a thread
+ * runs, its virtual runtime grows by the simulated ticks it uses, divided by
+ * its weight; the waiting thread with the least virtual runtime is always
+ * chosen next. Over time, each thread therefore receives processor time in
+ * proportion to its weight, and no thread waits long behind a thread that
+ * has already had more than its share.
+ * <p/>
+ * <p/>
+ * On every timer interrupt, the current thread is preempted if it has run for
+ * at least the minimum granularity (the <tt>FairScheduler.minGranularity</tt>
+ * configuration key, in ticks) and a ready thread has less virtual runtime.
+ * <p/>
+ * <p/>
+ * The waiters of each queue are kept in the min-heap of
+ * <tt>StrideScheduler</tt>, with the virtual runtime kept in the pass value.
+ * Weights are transferred through locks and through joins like tickets are:
+ * the effective weight of a thread is its own weight plus the effective
+ * weights of every thread waiting for it.
+ */
+public class FairScheduler extends StrideScheduler {
+    /**
+     * Allocate a new fair scheduler.
+     */
+    public FairScheduler() {
+        minGranularity = Config.getInteger("FairScheduler.minGranularity",
+                Stats.TimerTicks);
+    }
+
+    /**
+     * Virtual runtime is charged while a thread runs, not when it is granted
+     * access.
+     */
+    protected void granted(StrideQueue queue, StrideState state) {
+    }
+
+    /**
+     * Charge the current thread when it starts waiting on a queue, so its
+     * virtual runtime never changes while it is in a heap.
+     */
+    protected void waiting(StrideQueue queue, StrideState state) {
+        if (state == current)
+            charge(Machine.timer().getTime());
+    }
+
+    public void runningThread(KThread thread) {
+        long now = Machine.timer().getTime();
+        if (current != null && current.queue == null)
+            charge(now);
+
+        current = getThreadState(thread);
+        sliceStart = now;
+        lastCharge = now;
+    }
+
+    /**
+     * Charge the current thread, and preempt it if it has run for at least
+     * the minimum granularity and a ready thread has less virtual runtime.
+     */
+    public boolean timerInterrupt() {
+        if (current == null)
+            return false;
+
+        long now = Machine.timer().getTime();
+        charge(now);
+
+        if (now - sliceStart < minGranularity)
+            return false;
+        return readyQueue != null && readyQueue.size > 0
+                && readyQueue.heap[0].pass < current.pass;
+    }
+
+    /**
+     * Add the ticks the current thread has run since it was last charged,
+     * scaled by its effective weight, to its virtual runtime.
+     */
+    private void charge(long now) {
+        long ran = now - lastCharge;
+        lastCharge = now;
+        if (ran > 0)
+            current.pass += Math.max(1, ran * weightUnit / current.tickets);
+    }
+
+    /**
+     * The virtual runtime a thread of weight 1 accumulates per tick.
+     */
+    public static final long weightUnit = 1 << 10;
+
+    private long minGranularity;
+
+    private StrideState current = null;
+    private long sliceStart, lastCharge;
+
+    private static class SpinTest implements Runnable {
+        SpinTest(int loops) {
+            this.loops = loops;
+        }
+
+        public void run() {
+            long start = Machine.timer().getTime();
+            for (int i = 0; i < loops; i++) {
+                Machine.interrupt().disable();
+                Machine.interrupt().enable();
+            }
+            System.out.println(KThread.currentThread().getName()
+                    + " finished after " + (Machine.timer().getTime() - start)
+                    + " ticks");
+        }
+
+        private int loops;
+    }
+
+    /**
+     * Tests whether this module is working. Must run with
+     * <tt>FairScheduler</tt> as the kernel scheduler.
+     */
+    public static void selfTest() {
+        System.out.println("Begin Fair test");
+
+        KThread[] threads = new KThread[3];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new KThread(new SpinTest(1000)).setName("fair_" + i);
+            ThreadedKernel.scheduler.setPriority(threads[i], 1 << (2 * i));
+            threads[i].fork();
+        }
+        for (int i = 0; i < threads.length; i++)
+            threads[i].join();
+
+        System.out.println("End Fair test");
+    }
+}
@@ -0,0 +1,216 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A <tt>ThreadQueue</tt> that passes every operation on to another thread
+ * queue and records how it is used: how many threads wait on it over time,
+ * how long each thread waits (in simulated ticks), and, for a queue that
+ * transfers priority, how often a waiter donates to the thread with access.
+ * <p/>
+ * <p/>
+ * Queues are only wrapped when the <tt>InstrumentedQueue.enabled</tt>
+ * configuration key is true, by <tt>Scheduler.newThreadQueue(boolean,
+ * String)</tt>; otherwise no extra work is done per operation. The
+ * statistics are added up by owner, the kind of object the queue belongs to
+ * (a <tt>Lock</tt>, a <tt>Semaphore</tt>, a <tt>KThread</tt> join or the
+ * ready queue, for example), and printed with the waiting times of the
+ * threads that waited longest when the machine halts.
+ */
+public class InstrumentedQueue extends ThreadQueue {
+    /**
+     * Allocate a new instrumented queue.
+     *
+     * @param    queue    the queue to pass operations on to.
+     * @param    transferPriority    <tt>true</tt> if <i>queue</i> transfers
+     * priority.
+     * @param    owner    the kind of object the queue belongs to.
+     */
+    public InstrumentedQueue(ThreadQueue queue, boolean transferPriority,
+                             String owner) {
+        this.queue = queue;
+        this.transferPriority = transferPriority;
+
+        if (owners.isEmpty()) {
+            Machine.addHaltHandler(new Runnable() {
+                public void run() {
+                    printSummary();
+                }
+            });
+        }
+        stats = owners.get(owner);
+        if (stats == null) {
+            stats = new OwnerStats();
+            owners.put(owner, stats);
+        }
+        stats.queues++;
+    }
+
+    /**
+     * Return whether thread queues should be instrumented, according to the
+     * <tt>InstrumentedQueue.enabled</tt> configuration key.
+     *
+     * @return    <tt>true</tt> if thread queues should be instrumented.
+     */
+    public static boolean enabled() {
+        if (enabled == null)
+            enabled = Config.getBoolean("InstrumentedQueue.enabled", false);
+        return enabled;
+    }
+
+    public void waitForAccess(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        long now = Machine.timer().getTime();
+        stats.changeLength(1, now);
+        length++;
+        stats.maxLength = Math.max(stats.maxLength, length);
+        waitingSince.put(thread, now);
+
+        if (transferPriority && holder != null && holder != thread) {
+            stats.donations++;
+            int before = ThreadedKernel.scheduler.getEffectivePriority(holder);
+            queue.waitForAccess(thread);
+            if (ThreadedKernel.scheduler.getEffectivePriority(holder) > before)
+                stats.boosts++;
+        } else {
+            queue.waitForAccess(thread);
+        }
+    }
+
+    public KThread nextThread() {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        KThread thread = queue.nextThread();
+        if (transferPriority)
+            holder = thread;
+        if (thread == null)
+            return null;
+
+        long now = Machine.timer().getTime();
+        stats.changeLength(-1, now);
+        length--;
+
+        Long since = waitingSince.remove(thread);
+        if (since != null) {
+            long waited = now - since;
+            stats.waits++;
+            stats.totalWait += waited;
+            stats.maxWait = Math.max(stats.maxWait, waited);
+
+            String name = thread.toString();
+            Long total = threadWait.get(name);
+            threadWait.put(name, (total == null ? 0 : total) + waited);
+        }
+        return thread;
+    }
+
+    public void acquire(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        if (transferPriority)
+            holder = thread;
+        queue.acquire(thread);
+    }
+
+    public void addHolder(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        if (transferPriority && holder == null)
+            holder = thread;
+        queue.addHolder(thread);
+    }
+
+    public void removeHolder(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        if (holder == thread)
+            holder = null;
+        queue.removeHolder(thread);
+    }
+
+    public void print() {
+        queue.print();
+    }
+
+    /**
+     * Print the statistics of every owner, and the total time spent waiting
+     * by the threads that waited longest.
+     */
+    public static void printSummary() {
+        long now = Machine.timer().getTime();
+
+        System.out.println("Thread queues:");
+        System.out.println("owner queues waits avg_wait max_wait avg_length"
+                + " max_length donations boosts");
+        for (Map.Entry<String, OwnerStats> entry : owners.entrySet()) {
+            OwnerStats s = entry.getValue();
+            s.changeLength(0, now);
+            System.out.println(entry.getKey() + " " + s.queues + " " + s.waits
+                    + " " + (s.waits == 0 ? 0 : s.totalWait / s.waits)
+                    + " " + s.maxWait
+                    + " " + String.format("%.3f",
+                    now == 0 ? 0.0 : (double) s.area / now)
+                    + " " + s.maxLength + " " + s.donations + " " + s.boosts);
+        }
+
+        ArrayList<Map.Entry<String, Long>> threads =
+                new ArrayList<Map.Entry<String, Long>>(threadWait.entrySet());
+        Collections.sort(threads, new Comparator<Map.Entry<String, Long>>() {
+            public int compare(Map.Entry<String, Long> a,
+                               Map.Entry<String, Long> b) {
+                return b.getValue().compareTo(a.getValue());
+            }
+        });
+        System.out.println("thread wait_ticks");
+        for (int i = 0; i < Math.min(threads.size(), threadsShown); i++)
+            System.out.println(threads.get(i).getKey() + " "
+                    + threads.get(i).getValue());
+        System.out.println();
+    }
+
+    /**
+     * The statistics of all the queues of one owner. The length is the
+     * number of threads waiting on any of them, and <tt>area</tt> its
+     * integral over time, so that <tt>area / time</tt> is the average;
+     * <tt>maxLength</tt> is the longest any one queue has been.
+     */
+    private static class OwnerStats {
+        void changeLength(int diff, long now) {
+            area += length * (now - lastChange);
+            lastChange = now;
+            length += diff;
+        }
+
+        int queues = 0;
+        int length = 0, maxLength = 0;
+        long area = 0, lastChange = 0;
+        long waits = 0, totalWait = 0, maxWait = 0;
+        long donations = 0, boosts = 0;
+    }
+
+    private ThreadQueue queue;
+    private boolean transferPriority;
+    private OwnerStats stats;
+    private KThread holder = null;
+    private int length = 0;
+    private HashMap<KThread, Long> waitingSince = new HashMap<KThread, Long>();
+
+    /**
+     * The number of threads whose waiting time is printed.
+     */
+    private static final int threadsShown = 20;
+
+    private static Boolean enabled = null;
+    private static TreeMap<String, OwnerStats> owners =
+            new TreeMap<String, OwnerStats>();
+    private static HashMap<String, Long> threadWait =
+            new HashMap<String, Long>();
+}
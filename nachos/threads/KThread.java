@@ -49,7 +49,7 @@ public class KThread {
          * For Problem 1
          */
         boolean intStatus = Machine.interrupt().disable();
-        waitList = ThreadedKernel.scheduler.newThreadQueue(true);
+        waitList = ThreadedKernel.scheduler.newThreadQueue(true, "KThread.join");
         waitList.acquire(this);
         Machine.interrupt().restore(intStatus);
 
@@ -60,7 +60,7 @@ public class KThread {
         if (currentThread != null) {
             tcb = new TCB();
         } else {
-            readyQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+            readyQueue = ThreadedKernel.scheduler.newReadyQueue();
             readyQueue.acquire(this);
 
             currentThread = this;
@@ -200,6 +200,7 @@ public class KThread {
         Machine.interrupt().disable();
 
         Machine.autoGrader().finishingCurrentThread();
+        ThreadedKernel.scheduler.finishingThread(currentThread);
 
         Lib.assertTrue(toBeDestroyed == null);
         toBeDestroyed = currentThread;
@@ -389,6 +390,8 @@ public class KThread {
         Lib.assertTrue(Machine.interrupt().disabled());
 
         Machine.yield();
+        Machine.stats().numDispatches++;
+        Machine.interrupt().charge("switch");
 
         currentThread.saveState();
 
@@ -414,6 +417,7 @@ public class KThread {
         Lib.assertTrue(tcb == TCB.currentTCB());
 
         Machine.autoGrader().runningThread(this);
+        ThreadedKernel.scheduler.runningThread(this);
 
         status = statusRunning;
 
@@ -511,6 +515,28 @@ public class KThread {
      */
     public Object schedulingState = null;
 
+    /**
+     * The index of this thread in the alarm's heap while it sleeps there.
+     *
+     * @see    nachos.threads.Alarm#cancel
+     */
+    int alarmIndex = -1;
+
+    /**
+     * The next thread sleeping on the same condition variable.
+     *
+     * @see    nachos.threads.Condition
+     */
+    KThread conditionNext = null;
+
+    /**
+     * The word this thread is passing or has been passed while it waits on a
+     * channel.
+     *
+     * @see    nachos.threads.Channel
+     */
+    int channelWord = 0;
+
     private static final int statusNew = 0;
     private static final int statusReady = 1;
     private static final int statusRunning = 2;
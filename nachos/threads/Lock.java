@@ -46,6 +46,7 @@ public class Lock {
 
         Lib.assertTrue(lockHolder == thread);
 
+        Machine.interrupt().charge("lock");
         Machine.interrupt().restore(intStatus);
     }
 
@@ -60,9 +61,27 @@ public class Lock {
         if ((lockHolder = waitQueue.nextThread()) != null)
             lockHolder.ready();
 
+        Machine.interrupt().charge("lock");
         Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Make the specified thread wait for this lock as though it had called
+     * <tt>acquire()</tt>, without running it first. The thread will be
+     * readied when it is given the lock, so it wakes up only once and already
+     * holds the lock. The current thread must hold this lock, and the
+     * specified thread must be blocked. Used by <tt>Condition2</tt> to move
+     * woken threads straight from its wait queue to this lock's.
+     *
+     * @param    thread    the blocked thread to queue on this lock.
+     */
+    void requeue(KThread thread) {
+        Lib.assertTrue(isHeldByCurrentThread());
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        waitQueue.waitForAccess(thread);
+    }
+
     /**
      * Test if the current thread holds this lock.
      *
@@ -74,5 +93,5 @@ public class Lock {
 
     private KThread lockHolder = null;
     private ThreadQueue waitQueue =
-                ThreadedKernel.scheduler.newThreadQueue(true);
+                ThreadedKernel.scheduler.newThreadQueue(true, "Lock");
 }
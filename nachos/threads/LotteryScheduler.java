@@ -4,8 +4,10 @@ import nachos.machine.*;
 
 import java.util.Random;
 import java.util.TreeSet;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.WeakHashMap;
 
 /**
  * A scheduler that chooses threads using a lottery.
@@ -14,7 +16,9 @@ import java.util.Iterator;
  * A lottery scheduler associates a number of tickets with each thread. When a
  * thread needs to be dequeued, a random lottery is held, among all the tickets
  * of all the threads waiting to be dequeued. The thread that holds the winning
- * ticket is chosen.
+ * ticket is chosen. Every scheduler draws from one random number generator,
+ * seeded with the <tt>LotteryScheduler.seed</tt> configuration key, so a run
+ * can be repeated.
  * <p/>
  * <p/>
  * Note that a lottery scheduler must be able to handle a lot of tickets
@@ -26,12 +30,27 @@ import java.util.Iterator;
  * particular, tickets must be transferred through locks, and through joins.
  * Unlike a priority scheduler, these tickets add (as opposed to just taking
  * the maximum).
+ * <p/>
+ * <p/>
+ * Threads put in a group with <tt>setGroup()</tt> are funded in the group's
+ * currency. In a queue that does not transfer tickets, such as the ready
+ * queue, the group as a whole holds the tickets backing its currency (the
+ * <tt>LotteryScheduler.groupTickets</tt> configuration key, unless changed
+ * with <tt>setGroupTickets()</tt>), and the lottery is held in two rounds:
+ * first among the groups and the ungrouped threads, then among the waiting
+ * threads of the winning group. A group therefore gets the same share however
+ * many threads it has, and a thread that raises its own tickets only takes
+ * from the other threads of its group. Tickets transferred through locks and
+ * joins count in the currency of the thread receiving them.
  */
 public class LotteryScheduler extends PriorityScheduler {
     /**
      * Allocate a new lottery scheduler.
      */
     public LotteryScheduler() {
+        groupTickets = Config.getInteger("LotteryScheduler.groupTickets", 1);
+        Lib.assertTrue(groupTickets > 0);
+        random = new Random(Config.getInteger("LotteryScheduler.seed", 0));
     }
 
     /**
@@ -88,10 +107,62 @@ public class LotteryScheduler extends PriorityScheduler {
         return true;
     }
 
+    public void setGroup(KThread thread, Object group){
+        boolean intStatus = Machine.interrupt().disable();
+
+        LotteryState state = getThreadState(thread);
+        Lib.assertTrue(state.queue == null);
+        if(group == null)
+            state.currency = null;
+        else
+            state.currency = getCurrency(group);
+
+        Machine.interrupt().restore(intStatus);
+    }
+
+    public void setGroupTickets(Object group, int tickets){
+        boolean intStatus = Machine.interrupt().disable();
+
+        Lib.assertTrue(tickets > 0);
+        getCurrency(group).setTickets(tickets);
+
+        Machine.interrupt().restore(intStatus);
+    }
+
+    private Currency getCurrency(Object group){
+        Currency currency = currencies.get(group);
+        if(currency == null){
+            currency = new Currency(groupTickets);
+            currencies.put(group, currency);
+        }
+        return currency;
+    }
+
+    /**
+     * The currencies of the groups, by the object identifying each group. A
+     * currency goes away with its group.
+     */
+    private WeakHashMap<Object, Currency> currencies =
+            new WeakHashMap<Object, Currency>();
+    private int groupTickets;
+    private Random random;
+
     private class LotteryQueue extends ThreadQueue {
-        public LotteryState holder;
+        /**
+         * The threads with access, in the first <tt>holderCount</tt>
+         * entries. Each receives the tickets of all the waiting threads.
+         */
+        public LotteryState[] holders = new LotteryState[1];
+        public int holderCount = 0;
         public LotteryState root = null;
 
+        /**
+         * The share node of each group with threads waiting here. Only used
+         * if tickets are not transferred.
+         */
+        public HashMap<Currency, LotteryState> shares =
+                new HashMap<Currency, LotteryState>();
+
         public boolean transferLottery;
 
         LotteryQueue(boolean transferLottery){
@@ -110,25 +181,111 @@ public class LotteryScheduler extends PriorityScheduler {
             getThreadState(thread).acquire(this);
         }
 
+        public void addHolder(KThread thread){
+            Lib.assertTrue(Machine.interrupt().disabled());
+            LotteryState state = getThreadState(thread);
+            if(holderIndex(state) >= 0) return;
+            if(holderCount == holders.length){
+                LotteryState[] grown = new LotteryState[holderCount * 2];
+                System.arraycopy(holders, 0, grown, 0, holderCount);
+                holders = grown;
+            }
+            holders[holderCount++] = state;
+            if(transferLottery && root != null)
+                state.changeTickets(root.subsum);
+        }
+
+        public void removeHolder(KThread thread){
+            Lib.assertTrue(Machine.interrupt().disabled());
+            int i = holderIndex(getThreadState(thread));
+            if(i >= 0) release(i);
+        }
+
+        /**
+         * Take away access from the holder at position <tt>i</tt>, together
+         * with the tickets of the waiting threads.
+         */
+        private void release(int i){
+            LotteryState state = holders[i];
+            holders[i] = holders[--holderCount];
+            holders[holderCount] = null;
+            if(transferLottery && root != null)
+                state.changeTickets(-root.subsum);
+        }
+
+        private void releaseHolders(){
+            while(holderCount > 0) release(holderCount - 1);
+        }
+
+        private int holderIndex(LotteryState state){
+            for(int i=0; i<holderCount; i++)
+                if(holders[i] == state) return i;
+            return -1;
+        }
+
+        /**
+         * Add <tt>diff</tt> to the tickets this queue transfers: to every
+         * thread with access, and on along whatever they wait for.
+         */
+        private void donate(int diff){
+            if(!transferLottery) return;
+            for(int i=0; i<holderCount; i++){
+                LotteryState cur = holders[i];
+                cur.tickets += diff;
+                for(LotteryState nd = cur; nd != null; nd = nd.parent)
+                    nd.subsum += diff;
+                if(cur.queue != null && !cur.loop)
+                    cur.queue.donate(diff);
+            }
+        }
+
         public void add(LotteryState node){
-            node.left = root;
-            if(root != null) {
-                node.subsum += root.subsum;
-                root.parent = node;
+            if(!transferLottery && node.currency != null){
+                LotteryState share = shares.get(node.currency);
+                if(share == null){
+                    share = node.currency.newShare(this);
+                    shares.put(node.currency, share);
+                    root = push(root, share);
+                }
+                share.members = push(share.members, node);
+                return;
             }
-            root = node;
+            root = push(root, node);
         }
 
-        public KThread nextThread(){
-            if(holder != null){
-                if(transferLottery && root != null)
-                    holder.tickets -= root.subsum;
-                holder = null;
+        private LotteryState push(LotteryState top, LotteryState node){
+            node.left = top;
+            if(top != null) {
+                node.subsum += top.subsum;
+                top.parent = node;
             }
+            return node;
+        }
+
+        public KThread nextThread(){
+            releaseHolders();
             if(root == null) return null;
 
-            int nxt = 1 + new Random().nextInt(root.subsum);
-            LotteryState cur = root;
+            LotteryState cur = draw(root);
+            if(cur.thread == null){
+                LotteryState share = cur;
+                cur = draw(share.members);
+                share.members = remove(cur);
+                if(share.members == null){
+                    root = remove(share);
+                    shares.remove(cur.currency);
+                    cur.currency.shares.remove(share);
+                }
+            }
+            else root = remove(cur);
+            cur.queue = null;
+            cur.acquire(this);
+            return cur.thread;
+        }
+
+        private LotteryState draw(LotteryState top){
+            int nxt = 1 + random.nextInt(top.subsum);
+            LotteryState cur = top;
             while(true){
                 assert(cur != null);
                 int ls = cur.left!=null? cur.left.subsum : 0;
@@ -144,10 +301,40 @@ public class LotteryScheduler extends PriorityScheduler {
                     break;
                 }
             }
-            root = remove(cur);
-            cur.queue = null;
-            cur.acquire(this);
-            return cur.thread;
+            return cur;
+        }
+    }
+
+    /**
+     * The currency of a group. Wherever threads of the group wait on a queue
+     * that does not transfer tickets, the group is represented by a share
+     * node holding the currency's tickets, with the waiting threads in a
+     * splay tree of their own below it.
+     */
+    private static class Currency {
+        public int tickets;
+        public HashSet<LotteryState> shares = new HashSet<LotteryState>();
+
+        public Currency(int tickets){
+            this.tickets = tickets;
+        }
+
+        public LotteryState newShare(LotteryQueue queue){
+            LotteryState share = new LotteryState(null);
+            share.tickets = share.subsum = share.origTickets = tickets;
+            share.queue = queue;
+            shares.add(share);
+            return share;
+        }
+
+        public void setTickets(int num){
+            int diff = num - tickets;
+            tickets = num;
+            for(LotteryState share : shares){
+                share.tickets = share.origTickets = num;
+                for(LotteryState nd = share; nd != null; nd = nd.parent)
+                    nd.subsum += diff;
+            }
         }
     }
 
@@ -259,6 +446,10 @@ public class LotteryScheduler extends PriorityScheduler {
 
         public LotteryState parent = null, left = null, right = null;
 
+        public Currency currency = null;
+        /** For a share node, the root of the tree of its group's waiters. */
+        public LotteryState members = null;
+
         public LotteryState(KThread thread){
             super(thread);
             // this.thread = thread;
@@ -273,53 +464,55 @@ public class LotteryScheduler extends PriorityScheduler {
         public void setTickets(int num){
             int diff = num - origTickets;
             origTickets = num;
+            changeTickets(diff);
+        }
+
+        public void changeTickets(int diff){
             tickets += diff;
             if(diff == 0) return;
-            LotteryQueue Q = queue;
-            LotteryState cur = this;
-            while(true){
-                for(LotteryState nd = cur; nd != null; nd = nd.parent)
-                    nd.subsum += diff;
-                if(Q == null) break;
-                cur = Q.holder;
-                if(Q.transferLottery && cur != null){
-                    cur.tickets += diff;
-                    Q = cur.queue;
-                }
-                else break;
-            }
+            for(LotteryState nd = this; nd != null; nd = nd.parent)
+                nd.subsum += diff;
+            if(queue != null && !loop)
+                queue.donate(diff);
         }
 
         public void acquire(LotteryQueue waitQueue){
-            waitQueue.holder = this;
+            if(waitQueue.holderCount == 1 && waitQueue.holders[0] == this)
+                return;
+            waitQueue.releaseHolders();
+            waitQueue.holders[0] = this;
+            waitQueue.holderCount = 1;
         }
 
+        /**
+         * Test whether this thread, by waiting on <tt>queue</tt>, now waits
+         * for itself through the threads with access to the queues along
+         * the way.
+         */
         private boolean checkLoop(){
-            LotteryState fast = this, slow = this;
-            while(fast.queue != null
-                    && fast.queue.transferLottery
-                    && fast.queue.holder != null)
-            {
-                slow = slow.queue.holder;
-                fast = fast.queue.holder;
-                if(fast.queue == null
-                        || !fast.queue.transferLottery
-                        || fast.queue.holder == null) break;
-                fast = fast.queue.holder;
-                if(fast == slow) return true;
+            if(!queue.transferLottery) return false;
+            for(int i=0; i<queue.holderCount; i++){
+                LotteryState h = queue.holders[i];
+                if(h == this || h.waitsFor(this)) return true;
+            }
+            return false;
+        }
+
+        private boolean waitsFor(LotteryState target){
+            if(queue == null || !queue.transferLottery || loop) return false;
+            for(int i=0; i<queue.holderCount; i++){
+                LotteryState h = queue.holders[i];
+                if(h == target || h.waitsFor(target)) return true;
             }
             return false;
         }
 
         public void waitForAccess(LotteryQueue waitQueue){
+            // come back to the queue: give up access first
+            int held = waitQueue.holderIndex(this);
+            if(held >= 0) waitQueue.release(held);
+
             queue = waitQueue;
-            if(this == waitQueue.holder){
-                waitQueue.holder = null;
-                if(waitQueue.transferLottery) {
-                    tickets -= waitQueue.root.subsum;
-                    subsum = tickets;
-                }
-            }
             if(checkLoop()){
                 System.out.println("user deadlock");
                 loop = true;
@@ -327,18 +520,7 @@ public class LotteryScheduler extends PriorityScheduler {
             }
 
             waitQueue.add(this);
-            LotteryState cur = queue.holder;
-            LotteryQueue Q = queue;
-            while(Q.transferLottery && cur != null){
-                cur.tickets += tickets;
-                for(LotteryState nd = cur; nd != null; nd = nd.parent)
-                    nd.subsum += tickets;
-                if(cur.queue != null){
-                    Q = cur.queue;
-                    cur = Q.holder;
-                }
-                else break;
-            }
+            waitQueue.donate(tickets);
         }
     }
 
@@ -363,9 +545,79 @@ public class LotteryScheduler extends PriorityScheduler {
         }
     }
 
+    /**
+     * Hold <tt>rounds</tt> lotteries on a queue with one thread in group
+     * <tt>a</tt> and <tt>size</tt> threads in group <tt>b</tt>, both groups
+     * funded alike, the first thread of <tt>b</tt> holding <tt>inflated</tt>
+     * tickets. Return the number of lotteries group <tt>a</tt> won.
+     * <p/>
+     * <p/>
+     * The threads are never forked; they only carry scheduling state for
+     * the queue under test.
+     */
+    private static int groupLotteries(int size, int inflated, int rounds){
+        LotteryScheduler lottery = new LotteryScheduler();
+        Object a = "a", b = "b";
+        lottery.setGroupTickets(a, 10);
+        lottery.setGroupTickets(b, 10);
+
+        boolean intStatus = Machine.interrupt().disable();
+        ThreadQueue queue = lottery.newThreadQueue(false);
+        KThread[] threads = new KThread[size + 1];
+        for(int i=0; i<threads.length; i++){
+            threads[i] = new KThread();
+            threads[i].schedulingState = null;
+            lottery.setGroup(threads[i], i == 0 ? a : b);
+            if(i == 1) lottery.setPriority(threads[i], inflated);
+            queue.waitForAccess(threads[i]);
+        }
+        int won = 0;
+        for(int r=0; r<rounds; r++){
+            KThread thread = queue.nextThread();
+            if(thread == threads[0]) won++;
+            queue.waitForAccess(thread);
+        }
+        Machine.interrupt().restore(intStatus);
+
+        return won;
+    }
+
+    /**
+     * Check that two groups funded alike split the lotteries evenly, within
+     * 3% over 10000 draws, however many tickets the threads of one of them
+     * hold.
+     */
+    private static void groupTest(){
+        int rounds = 10000;
+        int[][] cases = {{1, 1}, {9, 1}, {9, 100}, {1, 1000000}};
+        for(int i=0; i<cases.length; i++){
+            int won = groupLotteries(cases[i][0], cases[i][1], rounds);
+            Lib.assertTrue(Math.abs(won - rounds / 2) <= rounds * 3 / 100);
+        }
+    }
+
+    /**
+     * Print the share each of two groups funded alike wins over
+     * <tt>rounds</tt> lotteries, as in <tt>groupTest()</tt>.
+     */
+    public static void groupBenchmark(int size, int inflated, int rounds){
+        int won = groupLotteries(size, inflated, rounds);
+        System.out.println("group a won " + (100 * won / rounds)
+                + "%, group b won " + (100 * (rounds - won) / rounds) + "%");
+    }
+
+    /**
+     * Tests whether this module is working. Runs <tt>groupBenchmark()</tt>
+     * too if the <tt>LotteryScheduler.benchmark</tt> configuration key is
+     * true.
+     */
     public static void selfTest(){
         System.out.println("Begin Lottery test");
 
+        groupTest();
+        if(Config.getBoolean("LotteryScheduler.benchmark", false))
+            groupBenchmark(9, 100, 10000);
+
         KThread hi = new KThread(new JoinTest()).setName("hi");
         ThreadedKernel.scheduler.setPriority(hi, 100);
         hi.fork();
@@ -0,0 +1,383 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A multi-level feedback queue scheduler.
+ * <p/>
+ * <p/>
+ * Threads are kept at one of several levels, level 0 being the highest. The
+ * next thread to be dequeued is always the longest-waiting thread of the
+ * highest non-empty level. Each level has a time allotment (its quantum),
+ * which doubles from one level to the next. A thread that uses up the
+ * allotment of its level, whether in one slice or spread over several, is
+ * moved down one level; at the lowest level it is simply preempted. A thread
+ * that blocks on the console or the file system is moved back to level 0, so
+ * interactive threads stay ahead of CPU-bound ones. To prevent starvation,
+ * every thread is moved back to level 0 once per reset interval.
+ * <p/>
+ * <p/>
+ * The number of levels, the quantum of level 0 and the reset interval are
+ * read from the <tt>MLFQScheduler.levels</tt>,
+ * <tt>MLFQScheduler.quantum</tt> and <tt>MLFQScheduler.resetInterval</tt>
+ * configuration keys. Priority is not transferred.
+ */
+public class MLFQScheduler extends Scheduler {
+    /**
+     * Allocate a new multi-level feedback queue scheduler.
+     */
+    public MLFQScheduler() {
+        levels = Config.getInteger("MLFQScheduler.levels", 3);
+        Lib.assertTrue(levels > 0 && levels <= 32);
+
+        int quantum = Config.getInteger("MLFQScheduler.quantum",
+                Stats.TimerTicks);
+        quanta = new long[levels];
+        for (int i = 0; i < levels; i++)
+            quanta[i] = (long) quantum << i;
+
+        resetInterval = Config.getInteger("MLFQScheduler.resetInterval",
+                50 * Stats.TimerTicks);
+
+        Machine.stats().levelOccupancy = new int[levels];
+        Machine.stats().levelTicks = new long[levels];
+    }
+
+    /**
+     * Allocate a new multi-level thread queue.
+     *
+     * @param    transferPriority    ignored. This scheduler does not
+     * transfer priority.
+     * @return a new multi-level thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+        return new MLFQQueue();
+    }
+
+    /**
+     * Allocate the ready queue. Only the ready queue counts its threads in
+     * <tt>Stats.levelOccupancy</tt>.
+     *
+     * @return a new ready queue.
+     */
+    protected ThreadQueue createReadyQueue() {
+        MLFQQueue queue = new MLFQQueue();
+        queue.ready = true;
+        return queue;
+    }
+
+    /**
+     * Return the level of the specified thread. Must be called with
+     * interrupts disabled.
+     *
+     * @param    thread    the thread whose level to return.
+     * @return the thread's level, 0 being the highest.
+     */
+    public int getLevel(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+        return levelOf(getThreadState(thread));
+    }
+
+    /**
+     * Charge the previously running thread for the time it ran, and start
+     * timing the newly dispatched one.
+     */
+    public void runningThread(KThread thread) {
+        long now = Machine.timer().getTime();
+        if (current != null)
+            charge(current, now);
+        current = getThreadState(thread);
+        current.dispatchedAt = now;
+    }
+
+    /**
+     * Start a new reset interval if one is due, and charge the current
+     * thread.
+     *
+     * @return    <tt>true</tt> if the current thread has used up the
+     * allotment of its level.
+     */
+    public boolean timerInterrupt() {
+        long now = Machine.timer().getTime();
+        if (now - lastReset >= resetInterval) {
+            lastReset = now;
+            epoch++;
+        }
+        if (current == null)
+            return false;
+        return charge(current, now);
+    }
+
+    /**
+     * Move the current thread back to level 0 with a fresh allotment.
+     */
+    public void waitingForIO() {
+        boolean intStatus = Machine.interrupt().disable();
+
+        MLFQState state = getThreadState(KThread.currentThread());
+        charge(state, Machine.timer().getTime());
+        state.level = 0;
+        state.used = 0;
+
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Add the time <i>state</i> has run since it was last charged to its
+     * usage, moving it down a level if the allotment is used up.
+     *
+     * @return    <tt>true</tt> if the allotment was used up.
+     */
+    private boolean charge(MLFQState state, long now) {
+        int level = levelOf(state);
+        long ran = now - state.dispatchedAt;
+        state.dispatchedAt = now;
+        Machine.stats().levelTicks[level] += ran;
+
+        state.used += ran;
+        if (state.used < quanta[level])
+            return false;
+
+        state.used = 0;
+        if (level < levels - 1) {
+            MLFQQueue queue = state.queue;
+            if (queue != null) {
+                queue.unlink(state);
+                queue.link(state, level + 1);
+            } else {
+                state.level = level + 1;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Return the level of <i>state</i>, moving it to level 0 first if a
+     * reset happened since it was last looked at.
+     */
+    private int levelOf(MLFQState state) {
+        if (state.queue != null)
+            state.queue.refresh();
+        if (state.epoch != epoch) {
+            state.epoch = epoch;
+            state.level = 0;
+            state.used = 0;
+        }
+        return state.level;
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param    thread    the thread whose scheduling state to return.
+     * @return the scheduling state of the specified thread.
+     */
+    protected MLFQState getThreadState(KThread thread) {
+        if (thread.schedulingState == null)
+            thread.schedulingState = new MLFQState(thread);
+
+        return (MLFQState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> with one FIFO list per level, threaded through
+     * the waiting threads' states, and a bitmap of the non-empty levels.
+     */
+    protected class MLFQQueue extends ThreadQueue {
+        public void waitForAccess(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            refresh();
+            MLFQState state = getThreadState(thread);
+            Lib.assertTrue(state.queue == null);
+            link(state, levelOf(state));
+        }
+
+        public KThread nextThread() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            refresh();
+            if (nonEmpty == 0)
+                return null;
+
+            MLFQState state = heads[Integer.numberOfTrailingZeros(nonEmpty)];
+            unlink(state);
+            return state.thread;
+        }
+
+        public void acquire(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+        }
+
+        public void print() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            for (int i = 0; i < levels; i++) {
+                for (MLFQState s = heads[i]; s != null; s = s.next)
+                    System.out.print(s.thread + " ");
+            }
+        }
+
+        /**
+         * If a reset happened since this queue was last used, append every
+         * lower level to level 0, keeping the order of levels. The states
+         * on the merged lists are moved to level 0 lazily by
+         * <tt>levelOf()</tt>.
+         */
+        private void refresh() {
+            if (queueEpoch == epoch)
+                return;
+            queueEpoch = epoch;
+
+            int[] occupancy = Machine.stats().levelOccupancy;
+            for (int i = 1; i < levels; i++) {
+                if (heads[i] == null)
+                    continue;
+                if (tails[0] == null) {
+                    heads[0] = heads[i];
+                } else {
+                    tails[0].next = heads[i];
+                    heads[i].prev = tails[0];
+                }
+                tails[0] = tails[i];
+                heads[i] = tails[i] = null;
+
+                if (ready) {
+                    occupancy[0] += sizes[i];
+                    occupancy[i] -= sizes[i];
+                }
+                sizes[0] += sizes[i];
+                sizes[i] = 0;
+            }
+            nonEmpty = (heads[0] == null) ? 0 : 1;
+        }
+
+        private void link(MLFQState state, int level) {
+            state.queue = this;
+            state.level = level;
+            state.next = null;
+            state.prev = tails[level];
+            if (tails[level] == null) {
+                heads[level] = state;
+                nonEmpty |= 1 << level;
+            } else {
+                tails[level].next = state;
+            }
+            tails[level] = state;
+
+            sizes[level]++;
+            if (ready)
+                Machine.stats().levelOccupancy[level]++;
+        }
+
+        private void unlink(MLFQState state) {
+            int level = levelOf(state);
+            if (state.prev == null)
+                heads[level] = state.next;
+            else
+                state.prev.next = state.next;
+            if (state.next == null)
+                tails[level] = state.prev;
+            else
+                state.next.prev = state.prev;
+            state.prev = state.next = null;
+            state.queue = null;
+            if (heads[level] == null)
+                nonEmpty &= ~(1 << level);
+
+            sizes[level]--;
+            if (ready)
+                Machine.stats().levelOccupancy[level]--;
+        }
+
+        private MLFQState[] heads = new MLFQState[levels];
+        private MLFQState[] tails = new MLFQState[levels];
+        private int[] sizes = new int[levels];
+        private int nonEmpty = 0;
+        private int queueEpoch = epoch;
+        private boolean ready = false;
+    }
+
+    /**
+     * The scheduling state of a thread: its level, how much of the level's
+     * allotment it has used, and its place in the queue it is waiting on.
+     */
+    protected class MLFQState {
+        MLFQState(KThread thread) {
+            this.thread = thread;
+            this.epoch = MLFQScheduler.this.epoch;
+        }
+
+        protected KThread thread;
+        protected int level = 0;
+        protected long used = 0;
+        protected long dispatchedAt = 0;
+        private int epoch;
+
+        protected MLFQQueue queue = null;
+        protected MLFQState prev = null, next = null;
+    }
+
+    private int levels;
+    private long[] quanta;
+    private long resetInterval;
+
+    /**
+     * Incremented at every reset. A state or queue whose epoch is older has
+     * not been moved back to level 0 yet.
+     */
+    private int epoch = 0;
+    private long lastReset = 0;
+    private MLFQState current = null;
+
+    private static class SpinTest implements Runnable {
+        SpinTest(int loops) {
+            this.loops = loops;
+        }
+
+        public void run() {
+            for (int i = 0; i < loops; i++) {
+                Machine.interrupt().disable();
+                Machine.interrupt().enable();
+            }
+            report();
+        }
+
+        private int loops;
+    }
+
+    private static class SleepTest implements Runnable {
+        public void run() {
+            for (int i = 0; i < 5; i++) {
+                ThreadedKernel.scheduler.waitingForIO();
+                ThreadedKernel.alarm.waitUntil(200);
+            }
+            report();
+        }
+    }
+
+    private static void report() {
+        boolean intStatus = Machine.interrupt().disable();
+        System.out.println(KThread.currentThread().getName() + " ends at level "
+                + ((MLFQScheduler) ThreadedKernel.scheduler)
+                .getLevel(KThread.currentThread()));
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Tests whether this module is working. Must run with
+     * <tt>MLFQScheduler</tt> as the kernel scheduler.
+     */
+    public static void selfTest() {
+        System.out.println("Begin MLFQ test");
+
+        KThread batch = new KThread(new SpinTest(1000)).setName("batch");
+        KThread shell = new KThread(new SleepTest()).setName("interactive");
+        batch.fork();
+        shell.fork();
+        batch.join();
+        shell.join();
+
+        System.out.println("End MLFQ test");
+    }
+}
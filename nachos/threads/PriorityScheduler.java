@@ -124,20 +124,11 @@ public class PriorityScheduler extends Scheduler {
      * A <tt>ThreadQueue</tt> that sorts threads by priority.
      */
     protected class PriorityQueue extends ThreadQueue {
-        public class ListNode {
-            public ThreadState val;
-            public ListNode next;
-            public ListNode(ThreadState val, ListNode next){
-                this.val = val; this.next = next;
-            }
-        }
-
         PriorityQueue(boolean transferPriority) {
             this.transferPriority = transferPriority;
-            threads = new ListNode[priorityMaximum - priorityMinimum +1];
-            for(int i=0; i<threads.length; i++){
-                threads[i] = new ListNode(null, null);
-            }
+            heads = new ThreadState[priorityMaximum - priorityMinimum + 1];
+            tails = new ThreadState[priorityMaximum - priorityMinimum + 1];
+            nonEmpty = new long[(heads.length + 63) >> 6];
         }
 
         public void waitForAccess(KThread thread) {
@@ -151,25 +142,11 @@ public class PriorityScheduler extends Scheduler {
         }
 
         public KThread nextThread() {
-            if(lockholder != null){
-                if(transferPriority) for(int i=0; i<counts.length; i++) lockholder.counts[i] -= counts[i];
-                lockholder = null;
-            }
-            ThreadState ret = null;
-            for(int i=threads.length-1; i>=0; i--){
-                if(threads[i].next != null){
-                    ListNode prnt = threads[i], cur = prnt.next;
-                    for(; cur.next != null; prnt = cur, cur = cur.next);
-                    ret = cur.val; prnt.next = null;
-                    for(int j=0; j<threads.length; j++){
-                        counts[j] -= ret.counts[j];
-                        if(transferPriority) ret.counts[j] += counts[j];
-                    }
-                    break;
-                }
-            }
+            releaseAll();
+            ThreadState ret = pickNextThread();
             if(ret == null) return null;
 
+            unlink(ret);
             ret.queue = null;
             ret.acquire(this);
             return ret.thread;
@@ -183,13 +160,8 @@ public class PriorityScheduler extends Scheduler {
          * return.
          */
         protected ThreadState pickNextThread() {
-            // implement me
-            for(int i=threads.length-1; i>=0; i--){
-                if(threads[i].next!=null){
-                    return threads[i].val;
-                }
-            }
-            return null;
+            int top = topLevel();
+            return top < 0 ? null : heads[top];
         }
 
         public void print() {
@@ -197,31 +169,185 @@ public class PriorityScheduler extends Scheduler {
             // implement me (if you want)
         }
 
+        /**
+         * Append <tt>node</tt> to the tail of the FIFO list of its current
+         * effective priority.
+         */
         public void add(ThreadState node){
-            // for(int i=0; i<counts.length; i++) counts[i] += node.counts[i];
-            int prio = node.getEffectivePriority();
-            threads[prio].next = new ListNode(node, threads[prio].next);
+            link(node, node.getEffectivePriority());
+        }
+
+        /**
+         * Move <tt>thread</tt> to the tail of the list of priority
+         * <tt>newval</tt>.
+         */
+        public void swap(int newval, ThreadState thread){
+            unlink(thread);
+            link(thread, newval);
+        }
+
+        public void addHolder(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+            hold(getThreadState(thread));
+        }
+
+        public void removeHolder(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+            int i = holderIndex(getThreadState(thread));
+            if(i >= 0) release(i);
+        }
+
+        /**
+         * Give access to <tt>holder</tt> as well, together with whatever this
+         * queue donates.
+         */
+        private void hold(ThreadState holder){
+            if(holderIndex(holder) >= 0) return;
+            if(holderCount == holders.length)
+                holders = Arrays.copyOf(holders, holderCount * 2);
+            Donation d = holders[holderCount];
+            if(d == null) d = holders[holderCount] = new Donation(this);
+            d.holder = holder;
+            holderCount++;
+
+            if(transferPriority){
+                if(holderCount == 1) donated = topLevel();
+                holder.addDonor(d);
+                holder.update();
+            }
+        }
+
+        /**
+         * Take away access from the holder at position <tt>i</tt>, together
+         * with whatever this queue was donating to it.
+         */
+        private void release(int i){
+            Donation d = holders[i];
+            holders[i] = holders[--holderCount];
+            holders[holderCount] = d;
+            ThreadState holder = d.holder;
+            d.holder = null;
+            if(transferPriority){
+                holder.removeDonor(d);
+                holder.update();
+            }
+        }
+
+        private void releaseAll(){
+            while(holderCount > 0) release(holderCount - 1);
+        }
+
+        private int holderIndex(ThreadState state){
+            for(int i=0; i<holderCount; i++)
+                if(holders[i].holder == state) return i;
+            return -1;
+        }
+
+        /**
+         * The first thread with access, or <tt>null</tt> if none.
+         */
+        private ThreadState holder(){
+            return holderCount == 0 ? null : holders[0].holder;
+        }
+
+        /**
+         * Re-read the highest waiting priority after the waiters changed.
+         * Every holder but the first is updated here.
+         *
+         * @return the holder whose effective priority has to be updated, or
+         * <tt>null</tt> if the donation did not change.
+         */
+        private ThreadState refresh(){
+            if(!transferPriority || holderCount == 0) return null;
+            int top = topLevel();
+            if(top == donated) return null;
+            donated = top;
+            for(int i=0; i<holderCount; i++)
+                holders[i].holder.fixDonor(holders[i]);
+            for(int i=1; i<holderCount; i++)
+                holders[i].holder.update();
+            return holders[0].holder;
+        }
+
+        /**
+         * The highest priority with a waiting thread, or -1 if none.
+         */
+        private int topLevel(){
+            for(int w=nonEmpty.length-1; w>=0; w--){
+                if(nonEmpty[w] != 0)
+                    return (w << 6) + 63 - Long.numberOfLeadingZeros(nonEmpty[w]);
+            }
+            return -1;
+        }
+
+        private void link(ThreadState node, int prio){
+            node.level = prio;
+            node.next = null;
+            node.prev = tails[prio];
+            if(tails[prio] == null) {
+                heads[prio] = node;
+                nonEmpty[prio >> 6] |= 1L << (prio & 63);
+            }
+            else tails[prio].next = node;
+            tails[prio] = node;
         }
 
-        public void swap(int oldval, int newval, ThreadState thread){
-            ListNode prnt = threads[oldval];
-            ListNode cur = threads[oldval].next;
-            Lib.assertTrue(cur != null);
-            for(; cur != null && cur.val != thread; prnt = cur, cur = cur.next);
-            Lib.assertTrue(cur != null && cur.val == thread);
-            prnt.next = cur.next;
-            cur.next = threads[newval].next; threads[newval].next = cur;
+        private void unlink(ThreadState node){
+            int prio = node.level;
+            if(node.prev == null) {
+                Lib.assertTrue(heads[prio] == node);
+                heads[prio] = node.next;
+            }
+            else node.prev.next = node.next;
+            if(node.next == null) tails[prio] = node.prev;
+            else node.next.prev = node.prev;
+            node.prev = node.next = null;
+            if(heads[prio] == null) nonEmpty[prio >> 6] &= ~(1L << (prio & 63));
         }
 
+        /**
+         * Per-priority FIFO lists threaded through <tt>ThreadState.prev</tt>
+         * and <tt>ThreadState.next</tt>, and a bitmap of the non-empty ones.
+         * The bitmap doubles as the max-structure of the waiters' priorities.
+         */
+        private ThreadState[] heads, tails;
+        private long[] nonEmpty;
+
+        /**
+         * The priority this queue currently donates to each thread with
+         * access.
+         */
+        private int donated = -1;
+        /**
+         * The donations to the threads with access, first
+         * <tt>holderCount</tt> entries; the entries past them are kept for
+         * reuse.
+         */
+        private Donation[] holders = new Donation[1];
+        private int holderCount = 0;
+
         /**
          * <tt>true</tt> if this queue should transfer priority from waiting
          * threads to the owning thread.
          */
-        private ListNode[] threads;
-        public int[] counts = new int[priorityMaximum - priorityMinimum +1];
-
         public boolean transferPriority;
-        public ThreadState lockholder = null;
+    }
+
+    /**
+     * The donation of a queue to one thread with access to it, kept in that
+     * thread's donor heap.
+     */
+    private static class Donation {
+        Donation(PriorityQueue queue) {
+            this.queue = queue;
+        }
+
+        final PriorityQueue queue;
+        ThreadState holder = null;
+        /**
+         * The position of this donation in the holder's donor heap.
+         */
+        int index = -1;
     }
 
     /**
@@ -242,8 +368,8 @@ public class PriorityScheduler extends Scheduler {
 
         public ThreadState(KThread thread) {
             this.thread = thread;
-            priority = priorityDefault; counts[priorityDefault] = 1;
-            // setPriority(priorityDefault);
+            priority = priorityDefault;
+            effectivePriority = priorityDefault;
         }
 
         /**
@@ -261,12 +387,7 @@ public class PriorityScheduler extends Scheduler {
          * @return the effective priority of the associated thread.
          */
         public int getEffectivePriority() {
-            // implement me
-            // update effectivePriority each-time
-            for(int i=counts.length-1; i>0; i--){
-                if(counts[i] > 0) return i;
-            }
-            return 0;
+            return effectivePriority;
         }
 
         /**
@@ -277,26 +398,30 @@ public class PriorityScheduler extends Scheduler {
         public void setPriority(int priority) {
             if(loop) return;
             if(priority == this.priority) return;
-            int old = this.priority;
             this.priority = priority;
+            update();
+        }
 
+        /**
+         * Recompute the effective priority from the base priority and the
+         * top of the donor heap, and carry any change along the wait-for
+         * chain. Stops at the first thread whose effective priority does not
+         * change.
+         */
+        private void update() {
             ThreadState cur = this;
-            do{
+            while(cur != null){
+                int eff = cur.priority;
+                if(cur.donorCount > 0 && cur.donors[0].queue.donated > eff)
+                    eff = cur.donors[0].queue.donated;
+                if(eff == cur.effectivePriority) return;
+                cur.effectivePriority = eff;
+
                 PriorityQueue Q = cur.queue;
-                if(Q == null) {
-                    cur.counts[old]--; cur.counts[priority]++;
-                    break;
-                }
-                else {
-                    Q.counts[old]--; Q.counts[priority]++;
-                    int oldval = cur.getEffectivePriority();
-                    cur.counts[old]--; cur.counts[priority]++;
-                    int newval = cur.getEffectivePriority();
-                    if(oldval != newval) Q.swap(oldval, newval, cur);
-                    if(Q.transferPriority) cur = Q.lockholder;
-                    else break;
-                }
-            }while(cur != this && cur != null);
+                if(Q == null) return;
+                Q.swap(eff, cur);
+                cur = Q.refresh();
+            }
         }
 
         /**
@@ -313,24 +438,22 @@ public class PriorityScheduler extends Scheduler {
 
         private boolean checkLoop(){
             ThreadState fast = this, slow = this;
-            while(fast.queue != null && fast.queue.transferPriority && fast.queue.lockholder != null){
-                slow = slow.queue.lockholder;
-                fast = fast.queue.lockholder;
-                if(fast.queue == null || !fast.queue.transferPriority || fast.queue.lockholder == null) break;
-                fast = fast.queue.lockholder;
+            while(fast.queue != null && fast.queue.transferPriority && fast.queue.holder() != null){
+                slow = slow.queue.holder();
+                fast = fast.queue.holder();
+                if(fast.queue == null || !fast.queue.transferPriority || fast.queue.holder() == null) break;
+                fast = fast.queue.holder();
                 if(fast == slow) return true;
             }
             return false;
         }
 
         public void waitForAccess(PriorityQueue waitQueue) {
-            // implement me
-            queue = waitQueue;
             // come-back to the waitQueue
-            if(this == waitQueue.lockholder){
-                waitQueue.lockholder = null;
-                if(waitQueue.transferPriority) for(int i=0; i<counts.length; i++) counts[i] -= waitQueue.counts[i];
-            }
+            int held = waitQueue.holderIndex(this);
+            if(held >= 0) waitQueue.release(held);
+
+            queue = waitQueue;
             waitQueue.add(this);
 
             if(checkLoop()) {
@@ -339,23 +462,8 @@ public class PriorityScheduler extends Scheduler {
                 return;
             }
 
-            PriorityQueue Q = queue;
-            while(Q != null){
-                for(int i=0; i<counts.length; i++) Q.counts[i] += counts[i];
-                ThreadState cur = Q.lockholder;
-                if(cur == null || !Q.transferPriority || cur == this) break;
-                else {
-                    Q = cur.queue;
-                    if(Q == null){
-                        for(int i=0; i<counts.length; i++) cur.counts[i] += counts[i];
-                        break;
-                    }
-                    int oldval = cur.getEffectivePriority();
-                    for(int i=0; i<counts.length; i++) cur.counts[i] += counts[i];
-                    int newval = cur.getEffectivePriority();
-                    if(oldval != newval) Q.swap(oldval, newval, cur);
-                }
-            }
+            ThreadState holder = waitQueue.refresh();
+            if(holder != null) holder.update();
         }
 
         /**
@@ -369,8 +477,69 @@ public class PriorityScheduler extends Scheduler {
          * @see    nachos.threads.ThreadQueue#nextThread
          */
         public void acquire(PriorityQueue waitQueue) {
-            // implement me
-            waitQueue.lockholder = this;
+            if(waitQueue.holderCount == 1 && waitQueue.holder() == this) return;
+            waitQueue.releaseAll();
+            waitQueue.hold(this);
+        }
+
+        /**
+         * Donor heap: the donations of the queues this thread holds, as a
+         * binary max-heap on <tt>PriorityQueue.donated</tt>.
+         */
+        private void addDonor(Donation d){
+            if(donorCount == donors.length){
+                Donation[] grown = new Donation[donors.length * 2];
+                System.arraycopy(donors, 0, grown, 0, donorCount);
+                donors = grown;
+            }
+            d.index = donorCount;
+            donors[donorCount++] = d;
+            siftUp(d.index);
+        }
+
+        private void removeDonor(Donation d){
+            int pos = d.index;
+            Lib.assertTrue(pos >= 0 && donors[pos] == d);
+            Donation last = donors[--donorCount];
+            donors[donorCount] = null;
+            d.index = -1;
+            if(pos == donorCount) return;
+            donors[pos] = last;
+            last.index = pos;
+            fixDonor(last);
+        }
+
+        private void fixDonor(Donation d){
+            siftDown(siftUp(d.index));
+        }
+
+        private int siftUp(int pos){
+            Donation d = donors[pos];
+            while(pos > 0){
+                int up = (pos - 1) >> 1;
+                if(donors[up].queue.donated >= d.queue.donated) break;
+                donors[pos] = donors[up];
+                donors[pos].index = pos;
+                pos = up;
+            }
+            donors[pos] = d;
+            d.index = pos;
+            return pos;
+        }
+
+        private void siftDown(int pos){
+            Donation d = donors[pos];
+            while(2*pos+1 < donorCount){
+                int child = 2*pos+1;
+                if(child+1 < donorCount && donors[child+1].queue.donated > donors[child].queue.donated)
+                    child++;
+                if(donors[child].queue.donated <= d.queue.donated) break;
+                donors[pos] = donors[child];
+                donors[pos].index = pos;
+                pos = child;
+            }
+            donors[pos] = d;
+            d.index = pos;
         }
 
         /**
@@ -382,9 +551,21 @@ public class PriorityScheduler extends Scheduler {
          * The priority of the associated thread.
          */
         protected int priority;
+        /**
+         * The priority after donation, kept up to date by <tt>update()</tt>.
+         */
+        protected int effectivePriority;
 
         public PriorityQueue queue;
-        public int[] counts = new int[priorityMaximum - priorityMinimum + 1];
+        /**
+         * Neighbours in the wait list of <tt>queue</tt>, and the priority
+         * level of that list.
+         */
+        protected ThreadState prev = null, next = null;
+        protected int level;
+
+        private Donation[] donors = new Donation[2];
+        private int donorCount = 0;
     }
 
     private static class PingTest implements Runnable {
@@ -0,0 +1,445 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+
+/**
+ * A readers-writer lock. Like a <tt>Lock</tt>, except that it can also be
+ * held in shared mode: any number of threads may hold it for reading at the
+ * same time, as long as no thread holds it for writing.
+ * <p/>
+ * <p/>
+ * Writers are preferred: once a writer is waiting, threads asking to read
+ * wait behind it, so a steady stream of readers cannot starve a writer. To
+ * keep writers from starving readers in turn, at most
+ * <tt>RWLock.writerBound</tt> writers in a row take the lock while readers
+ * are waiting; then every waiting reader is let in.
+ * <p/>
+ * <p/>
+ * Waiting threads donate priority to the threads holding the lock through
+ * <tt>transferPriority</tt> queues. While the lock is held for reading, every
+ * reader holds both queues with <tt>ThreadQueue.addHolder()</tt>, so the
+ * waiters donate to all the readers at once.
+ */
+public class RWLock {
+    /**
+     * Allocate a new readers-writer lock, with the fairness bound given by
+     * the <tt>RWLock.writerBound</tt> configuration key. The lock will
+     * initially be <i>free</i>.
+     */
+    public RWLock() {
+        this(Config.getInteger("RWLock.writerBound", 4));
+    }
+
+    /**
+     * Allocate a new readers-writer lock. The lock will initially be
+     * <i>free</i>.
+     *
+     * @param    writerBound    the number of writers that may take the lock
+     * in a row while readers are waiting.
+     */
+    public RWLock(int writerBound) {
+        Lib.assertTrue(writerBound > 0);
+        this.writerBound = writerBound;
+    }
+
+    /**
+     * Atomically acquire this lock for reading. The current thread must not
+     * already hold this lock.
+     */
+    public void acquireRead() {
+        Lib.assertTrue(!isHeldByCurrentThread());
+
+        boolean intStatus = Machine.interrupt().disable();
+        KThread thread = KThread.currentThread();
+
+        if (writer != null || waitingWriters > 0) {
+            waitingReaders++;
+            readQueue.waitForAccess(thread);
+            KThread.sleep();
+        } else {
+            readQueue.addHolder(thread);
+            writeQueue.addHolder(thread);
+            readers.add(thread);
+        }
+
+        Lib.assertTrue(isReadHeldByCurrentThread());
+
+        Machine.interrupt().charge("lock");
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically release this lock after reading, allowing other threads to
+     * acquire it.
+     */
+    public void releaseRead() {
+        Lib.assertTrue(isReadHeldByCurrentThread());
+
+        boolean intStatus = Machine.interrupt().disable();
+        KThread thread = KThread.currentThread();
+
+        readers.remove(thread);
+        readQueue.removeHolder(thread);
+        writeQueue.removeHolder(thread);
+
+        if (readers.isEmpty() && waitingWriters > 0)
+            grantWriter(1);
+
+        Machine.interrupt().charge("lock");
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically acquire this lock for writing. The current thread must not
+     * already hold this lock.
+     */
+    public void acquireWrite() {
+        Lib.assertTrue(!isHeldByCurrentThread());
+
+        boolean intStatus = Machine.interrupt().disable();
+        KThread thread = KThread.currentThread();
+
+        if (writer != null || !readers.isEmpty()) {
+            waitingWriters++;
+            writeQueue.waitForAccess(thread);
+            KThread.sleep();
+        } else {
+            readQueue.addHolder(thread);
+            writeQueue.addHolder(thread);
+            writer = thread;
+            writerStreak = 1;
+        }
+
+        Lib.assertTrue(writer == thread);
+
+        Machine.interrupt().charge("lock");
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically release this lock after writing, allowing other threads to
+     * acquire it.
+     */
+    public void releaseWrite() {
+        Lib.assertTrue(isWriteHeldByCurrentThread());
+
+        boolean intStatus = Machine.interrupt().disable();
+
+        writer = null;
+        readQueue.removeHolder(KThread.currentThread());
+        writeQueue.removeHolder(KThread.currentThread());
+
+        if (waitingWriters > 0
+                && (waitingReaders == 0 || writerStreak < writerBound))
+            grantWriter(writerStreak + 1);
+        else if (waitingReaders > 0)
+            grantReaders();
+
+        Machine.interrupt().charge("lock");
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Test if the current thread holds this lock for reading.
+     *
+     * @return true if the current thread holds this lock for reading.
+     */
+    public boolean isReadHeldByCurrentThread() {
+        return readers.contains(KThread.currentThread());
+    }
+
+    /**
+     * Test if the current thread holds this lock for writing.
+     *
+     * @return true if the current thread holds this lock for writing.
+     */
+    public boolean isWriteHeldByCurrentThread() {
+        return (writer == KThread.currentThread());
+    }
+
+    /**
+     * Test if the current thread holds this lock in either mode.
+     *
+     * @return true if the current thread holds this lock.
+     */
+    public boolean isHeldByCurrentThread() {
+        return isWriteHeldByCurrentThread() || isReadHeldByCurrentThread();
+    }
+
+    /**
+     * Give the free lock to the next waiting writer.
+     *
+     * @param    streak    the number of writers in a row that will have
+     * held the lock, counting this one.
+     */
+    private void grantWriter(int streak) {
+        waitingWriters--;
+        writer = writeQueue.nextThread();
+        readQueue.addHolder(writer);
+        writerStreak = streak;
+        writer.ready();
+    }
+
+    /**
+     * Give the free lock to every waiting reader.
+     */
+    private void grantReaders() {
+        for (; waitingReaders > 0; waitingReaders--) {
+            KThread reader = readQueue.nextThread();
+            readers.add(reader);
+            reader.ready();
+        }
+        for (KThread reader : readers) {
+            readQueue.addHolder(reader);
+            writeQueue.addHolder(reader);
+        }
+    }
+
+    /**
+     * Test that readers share the lock and writers exclude everyone, that a
+     * waiting writer goes ahead of later readers, and that readers get in
+     * after at most <tt>writerBound</tt> writers, and that a waiting writer
+     * donates to every reader; then compare this lock with a <tt>Lock</tt>
+     * on a workload of 95% reads.
+     */
+    public static void selfTest() {
+        System.out.println("RWLock test #1 begin.");
+        RWLock lock = new RWLock(2);
+        KThread[] threads = new KThread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new KThread(new ExclusionTest(lock, i % 4 == 0))
+                    .setName("rw" + i);
+            threads[i].fork();
+        }
+        for (int i = 0; i < threads.length; i++)
+            threads[i].join();
+        Lib.assertTrue(maxReaders > 1);
+        System.out.println("RWLock test #1 end: up to " + maxReaders
+                + " readers at once.");
+
+        System.out.println("RWLock test #2 begin.");
+        lock = new RWLock(2);
+        order = new StringBuilder();
+        lock.acquireRead();
+        KThread w = new KThread(new OrderTest(lock, 'w', true)).setName("w");
+        w.fork();
+        waitFor(lock, 0, 1);
+        KThread r = new KThread(new OrderTest(lock, 'r', false)).setName("r");
+        r.fork();
+        waitFor(lock, 1, 1);
+        lock.releaseRead();
+        w.join();
+        r.join();
+        Lib.assertTrue(order.toString().equals("wr"));
+        System.out.println("RWLock test #2 end.");
+
+        System.out.println("RWLock test #3 begin.");
+        order = new StringBuilder();
+        lock.acquireWrite();
+        threads = new KThread[4];
+        for (int i = 0; i < 3; i++) {
+            threads[i] = new KThread(new OrderTest(lock, 'w', true));
+            threads[i].fork();
+            waitFor(lock, 0, i + 1);
+        }
+        threads[3] = new KThread(new OrderTest(lock, 'r', false));
+        threads[3].fork();
+        waitFor(lock, 1, 3);
+        lock.releaseWrite();
+        for (int i = 0; i < threads.length; i++)
+            threads[i].join();
+        Lib.assertTrue(order.toString().equals("wrww"));
+        System.out.println("RWLock test #3 end.");
+
+        System.out.println("RWLock test #4 begin.");
+        final RWLock shared = new RWLock(2);
+        final Semaphore held = new Semaphore(0), done = new Semaphore(0);
+        shared.acquireRead();
+        KThread reader = new KThread(new Runnable() {
+            public void run() {
+                shared.acquireRead();
+                held.V();
+                done.P();
+                shared.releaseRead();
+            }
+        }).setName("reader");
+        reader.fork();
+        held.P();
+        w = new KThread(new OrderTest(shared, 'w', true)).setName("w");
+        boolean intStatus = Machine.interrupt().disable();
+        ThreadedKernel.scheduler.setPriority(w,
+                PriorityScheduler.priorityMaximum);
+        Machine.interrupt().restore(intStatus);
+        w.fork();
+        waitFor(shared, 0, 1);
+        intStatus = Machine.interrupt().disable();
+        int donated = ThreadedKernel.scheduler.getEffectivePriority(w);
+        Lib.assertTrue(ThreadedKernel.scheduler.getEffectivePriority() >= donated
+                && ThreadedKernel.scheduler.getEffectivePriority(reader)
+                >= donated);
+        Machine.interrupt().restore(intStatus);
+        shared.releaseRead();
+        done.V();
+        reader.join();
+        w.join();
+        System.out.println("RWLock test #4 end.");
+
+        contentionBenchmark(8, 50, 95);
+    }
+
+    /**
+     * Sleep until the specified numbers of readers and writers are waiting
+     * for <i>lock</i>. Sleeping rather than yielding lets the other threads
+     * run under any scheduler.
+     */
+    private static void waitFor(RWLock lock, int readers, int writers) {
+        while (lock.waitingReaders != readers
+                || lock.waitingWriters != writers)
+            ThreadedKernel.alarm.waitUntil(10);
+    }
+
+    /**
+     * Run <i>threads</i> threads that each take a lock <i>rounds</i> times,
+     * for reading with probability <i>readPercent</i>%, and hold it across
+     * a short sleep on the alarm, standing in for a disk access. Print the
+     * ticks the workload takes with a <tt>Lock</tt> and with an
+     * <tt>RWLock</tt>.
+     *
+     * @param    threads    the number of threads.
+     * @param    rounds    the number of times each thread takes the lock.
+     * @param    readPercent    the percentage of reads.
+     */
+    public static void contentionBenchmark(int threads, int rounds,
+                                           int readPercent) {
+        long[] ticks = new long[2];
+        int[] dispatches = new int[2];
+        for (int pass = 0; pass < 2; pass++) {
+            Lock lock = (pass == 0) ? new Lock() : null;
+            RWLock rwLock = (pass == 1) ? new RWLock() : null;
+
+            long start = Machine.timer().getTime();
+            int startDispatches = Machine.stats().numDispatches;
+            KThread[] workers = new KThread[threads];
+            for (int i = 0; i < threads; i++) {
+                workers[i] = new KThread(new ContentionTest(lock, rwLock,
+                        rounds, readPercent)).setName("contend" + i);
+                workers[i].fork();
+            }
+            for (int i = 0; i < threads; i++)
+                workers[i].join();
+            ticks[pass] = Machine.timer().getTime() - start;
+            dispatches[pass] = Machine.stats().numDispatches - startDispatches;
+        }
+
+        System.out.println("rwlock " + readPercent + "% reads, " + threads
+                + " threads: Lock " + ticks[0] + " ticks " + dispatches[0]
+                + " dispatches, RWLock " + ticks[1] + " ticks "
+                + dispatches[1] + " dispatches");
+    }
+
+    private static class ExclusionTest implements Runnable {
+        ExclusionTest(RWLock lock, boolean writes) {
+            this.lock = lock;
+            this.writes = writes;
+        }
+
+        public void run() {
+            for (int i = 0; i < 10; i++) {
+                if (writes) {
+                    lock.acquireWrite();
+                    Lib.assertTrue(activeReaders == 0 && activeWriters == 0);
+                    activeWriters++;
+                    KThread.yield();
+                    activeWriters--;
+                    lock.releaseWrite();
+                } else {
+                    lock.acquireRead();
+                    Lib.assertTrue(activeWriters == 0);
+                    activeReaders++;
+                    maxReaders = Math.max(maxReaders, activeReaders);
+                    KThread.yield();
+                    activeReaders--;
+                    lock.releaseRead();
+                }
+                KThread.yield();
+            }
+        }
+
+        private RWLock lock;
+        private boolean writes;
+    }
+
+    private static class OrderTest implements Runnable {
+        OrderTest(RWLock lock, char name, boolean writes) {
+            this.lock = lock;
+            this.name = name;
+            this.writes = writes;
+        }
+
+        public void run() {
+            if (writes) {
+                lock.acquireWrite();
+                order.append(name);
+                lock.releaseWrite();
+            } else {
+                lock.acquireRead();
+                order.append(name);
+                lock.releaseRead();
+            }
+        }
+
+        private RWLock lock;
+        private char name;
+        private boolean writes;
+    }
+
+    private static class ContentionTest implements Runnable {
+        ContentionTest(Lock lock, RWLock rwLock, int rounds, int readPercent) {
+            this.lock = lock;
+            this.rwLock = rwLock;
+            this.rounds = rounds;
+            this.readPercent = readPercent;
+        }
+
+        public void run() {
+            for (int i = 0; i < rounds; i++) {
+                boolean read = Lib.random(100) < readPercent;
+                if (lock != null)
+                    lock.acquire();
+                else if (read)
+                    rwLock.acquireRead();
+                else
+                    rwLock.acquireWrite();
+
+                ThreadedKernel.alarm.waitUntil(100);
+
+                if (lock != null)
+                    lock.release();
+                else if (read)
+                    rwLock.releaseRead();
+                else
+                    rwLock.releaseWrite();
+            }
+        }
+
+        private Lock lock;
+        private RWLock rwLock;
+        private int rounds, readPercent;
+    }
+
+    private static int activeReaders = 0, activeWriters = 0, maxReaders = 0;
+    private static StringBuilder order;
+
+    private KThread writer = null;
+    private LinkedList<KThread> readers = new LinkedList<KThread>();
+    private int waitingReaders = 0, waitingWriters = 0;
+    private int writerStreak = 0;
+    private int writerBound;
+
+    private ThreadQueue readQueue =
+            ThreadedKernel.scheduler.newThreadQueue(true, "RWLock");
+    private ThreadQueue writeQueue =
+            ThreadedKernel.scheduler.newThreadQueue(true, "RWLock");
+}
@@ -0,0 +1,301 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A scheduler that chooses the thread with the shortest predicted CPU burst.
+ * <p/>
+ * <p/>
+ * A burst is the simulated time a thread runs from being dispatched until it
+ * sleeps or yields. After each burst, the thread's prediction for its next
+ * burst is updated by exponential averaging:
+ * <p/>
+ * <p><blockquote>
+ * prediction = alpha * (last burst) + (1 - alpha) * prediction
+ * </blockquote>
+ * <p/>
+ * The waiting thread with the least predicted time left in its burst is
+ * always dequeued first, ties going to the thread that has waited longest.
+ * <p/>
+ * <p/>
+ * In preemptive (shortest-remaining-time-first) mode, the current thread is
+ * preempted on a timer interrupt if a ready thread has less predicted time
+ * left; a preempted burst continues when the thread runs again. The
+ * <tt>SJFScheduler.alpha</tt>, <tt>SJFScheduler.initialBurst</tt> and
+ * <tt>SJFScheduler.preemptive</tt> configuration keys control the averaging
+ * weight, the prediction for a new thread, and the mode. Priority is not
+ * transferred.
+ */
+public class SJFScheduler extends Scheduler {
+    /**
+     * Allocate a new shortest-job-first scheduler.
+     */
+    public SJFScheduler() {
+        alpha = Config.getDouble("SJFScheduler.alpha", 0.5);
+        Lib.assertTrue(alpha >= 0 && alpha <= 1);
+        initialBurst = Config.getInteger("SJFScheduler.initialBurst",
+                Stats.TimerTicks);
+        preemptive = Config.getBoolean("SJFScheduler.preemptive", false);
+    }
+
+    /**
+     * Allocate a new shortest-job-first thread queue.
+     *
+     * @param    transferPriority    ignored. This scheduler does not
+     * transfer priority.
+     * @return a new shortest-job-first thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+        return new SJFQueue();
+    }
+
+    /**
+     * Allocate the ready queue, and remember it so that timer interrupts can
+     * compare its first thread with the current one.
+     *
+     * @return a new ready queue.
+     */
+    protected ThreadQueue createReadyQueue() {
+        readyQueue = new SJFQueue();
+        return readyQueue;
+    }
+
+    /**
+     * End the burst of the previously running thread, unless it was
+     * preempted, and start timing the newly dispatched one.
+     */
+    public void runningThread(KThread thread) {
+        long now = Machine.timer().getTime();
+        if (current != null) {
+            current.burst += now - dispatchedAt;
+            if (!preempting) {
+                endBurst(current, current.burst);
+                current.burst = 0;
+            }
+        }
+        preempting = false;
+
+        current = getThreadState(thread);
+        dispatchedAt = now;
+    }
+
+    /**
+     * In preemptive mode, preempt the current thread if the first ready
+     * thread has less predicted time left in its burst.
+     */
+    public boolean timerInterrupt() {
+        if (!preemptive || current == null)
+            return false;
+
+        long now = Machine.timer().getTime();
+        current.burst += now - dispatchedAt;
+        dispatchedAt = now;
+
+        if (readyQueue == null || readyQueue.size == 0
+                || readyQueue.heap[0].key >= current.remaining())
+            return false;
+
+        preempting = true;
+        return true;
+    }
+
+    private void endBurst(SJFState state, long burst) {
+        state.prediction = Math.round(alpha * burst
+                + (1 - alpha) * state.prediction);
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param    thread    the thread whose scheduling state to return.
+     * @return the scheduling state of the specified thread.
+     */
+    protected SJFState getThreadState(KThread thread) {
+        if (thread.schedulingState == null)
+            thread.schedulingState = new SJFState(thread, initialBurst);
+
+        return (SJFState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that keeps its waiters in a binary min-heap on
+     * predicted time left, breaking ties in FIFO order.
+     */
+    protected class SJFQueue extends ThreadQueue {
+        public void waitForAccess(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            SJFState state = getThreadState(thread);
+            state.key = state.remaining();
+            state.sequence = sequence++;
+
+            if (size == heap.length) {
+                SJFState[] grown = new SJFState[heap.length * 2];
+                System.arraycopy(heap, 0, grown, 0, size);
+                heap = grown;
+            }
+            heap[size] = state;
+            siftUp(size++);
+        }
+
+        public KThread nextThread() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            if (size == 0)
+                return null;
+
+            SJFState state = heap[0];
+            heap[0] = heap[--size];
+            heap[size] = null;
+            if (size > 0)
+                siftDown(0);
+
+            return state.thread;
+        }
+
+        public void acquire(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+        }
+
+        public void print() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            for (int i = 0; i < size; i++)
+                System.out.print(heap[i].thread + " ");
+        }
+
+        private boolean before(SJFState a, SJFState b) {
+            if (a.key != b.key)
+                return a.key < b.key;
+            return a.sequence < b.sequence;
+        }
+
+        private void siftUp(int pos) {
+            SJFState state = heap[pos];
+            while (pos > 0) {
+                int up = (pos - 1) >> 1;
+                if (!before(state, heap[up]))
+                    break;
+                heap[pos] = heap[up];
+                pos = up;
+            }
+            heap[pos] = state;
+        }
+
+        private void siftDown(int pos) {
+            SJFState state = heap[pos];
+            while (2 * pos + 1 < size) {
+                int child = 2 * pos + 1;
+                if (child + 1 < size && before(heap[child + 1], heap[child]))
+                    child++;
+                if (!before(heap[child], state))
+                    break;
+                heap[pos] = heap[child];
+                pos = child;
+            }
+            heap[pos] = state;
+        }
+
+        private SJFState[] heap = new SJFState[4];
+        private int size = 0;
+        private long sequence = 0;
+    }
+
+    /**
+     * The scheduling state of a thread: its predicted burst, and how much of
+     * the current burst it has used.
+     */
+    protected static class SJFState {
+        SJFState(KThread thread, long prediction) {
+            this.thread = thread;
+            this.prediction = prediction;
+        }
+
+        long remaining() {
+            return Math.max(0, prediction - burst);
+        }
+
+        protected KThread thread;
+        protected long prediction;
+        protected long burst = 0;
+
+        private long key;
+        private long sequence;
+    }
+
+    private double alpha;
+    private long initialBurst;
+    private boolean preemptive;
+
+    private SJFState current = null;
+    private long dispatchedAt;
+    private boolean preempting = false;
+
+    private SJFQueue readyQueue = null;
+
+    /**
+     * Run a batch of jobs to completion through a ready queue of each
+     * scheduler, and print the average turnaround time of each. Job
+     * <i>i</i> consists of <tt>counts[i]</tt> CPU bursts of
+     * <tt>bursts[i]</tt> ticks each, and rejoins the queue after every
+     * burst; all jobs arrive at time 0.
+     * <p/>
+     * <p/>
+     * The threads are never forked; they only carry scheduling state for
+     * the queues under test.
+     */
+    public static void turnaroundBenchmark(int[] bursts, int[] counts) {
+        Scheduler[] schedulers = {new RoundRobinScheduler(),
+                new PriorityScheduler(), new LotteryScheduler(),
+                new SJFScheduler()};
+
+        System.out.println("scheduler avg_turnaround");
+
+        boolean intStatus = Machine.interrupt().disable();
+        for (int s = 0; s < schedulers.length; s++) {
+            ThreadQueue queue = schedulers[s].newThreadQueue(false);
+            KThread[] threads = new KThread[bursts.length];
+            int[] left = new int[bursts.length];
+            for (int i = 0; i < bursts.length; i++) {
+                threads[i] = new KThread();
+                threads[i].schedulingState = null;
+                left[i] = counts[i];
+                queue.waitForAccess(threads[i]);
+            }
+
+            long time = 0, turnaround = 0;
+            for (KThread thread; (thread = queue.nextThread()) != null; ) {
+                int i = 0;
+                while (threads[i] != thread)
+                    i++;
+
+                time += bursts[i];
+                if (schedulers[s] instanceof SJFScheduler) {
+                    SJFScheduler sjf = (SJFScheduler) schedulers[s];
+                    sjf.endBurst(sjf.getThreadState(thread), bursts[i]);
+                }
+
+                if (--left[i] == 0)
+                    turnaround += time;
+                else
+                    queue.waitForAccess(thread);
+            }
+
+            System.out.println(schedulers[s].getClass().getName() + " "
+                    + turnaround / bursts.length);
+        }
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Tests whether this module is working.
+     */
+    public static void selfTest() {
+        System.out.println("Begin SJF test");
+
+        turnaroundBenchmark(new int[]{2000, 100, 1500, 50, 800, 200},
+                new int[]{10, 10, 10, 10, 10, 10});
+
+        System.out.println("End SJF test");
+    }
+}
@@ -52,6 +52,67 @@ public abstract class Scheduler {
      */
     public abstract ThreadQueue newThreadQueue(boolean transferPriority);
 
+    /**
+     * Allocate a new thread queue for an object of the specified kind. Same
+     * as <tt>newThreadQueue(transferPriority)</tt>, except that if queues
+     * are being instrumented, the new queue is wrapped in an
+     * <tt>InstrumentedQueue</tt> whose statistics are added to those of
+     * <i>owner</i>.
+     *
+     * @param    transferPriority    <tt>true</tt> if the thread that has
+     * access should receive priority from the
+     * threads that are waiting on this queue.
+     * @param    owner    the kind of object the queue belongs to, such as
+     * <tt>"Lock"</tt>.
+     * @return a new thread queue.
+     * @see    nachos.threads.InstrumentedQueue
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority, String owner) {
+        return instrument(newThreadQueue(transferPriority), transferPriority,
+                owner);
+    }
+
+    /**
+     * Allocate the queue of threads waiting to run on the processor.
+     * <tt>KThread</tt> calls this once, when the first thread is created.
+     * The queue comes from <tt>createReadyQueue()</tt>, and is instrumented
+     * like those of <tt>newThreadQueue(false, "ready")</tt>.
+     *
+     * @return a new ready queue.
+     */
+    public final ThreadQueue newReadyQueue() {
+        return instrument(createReadyQueue(), false, "ready");
+    }
+
+    /**
+     * Allocate the ready queue for <tt>newReadyQueue()</tt>. Same as
+     * <tt>newThreadQueue(false)</tt>; a scheduler that treats the ready queue
+     * differently from its other queues overrides this to tell it apart.
+     *
+     * @return a new, uninstrumented ready queue.
+     */
+    protected ThreadQueue createReadyQueue() {
+        return newThreadQueue(false);
+    }
+
+    /**
+     * Wrap a new thread queue in an <tt>InstrumentedQueue</tt>, if queues are
+     * being instrumented.
+     *
+     * @param    queue    the new queue.
+     * @param    transferPriority    <tt>true</tt> if <i>queue</i> transfers
+     * priority.
+     * @param    owner    the kind of object the queue belongs to.
+     * @return <i>queue</i>, or the queue wrapping it.
+     */
+    private static ThreadQueue instrument(ThreadQueue queue,
+                                          boolean transferPriority,
+                                          String owner) {
+        if (!InstrumentedQueue.enabled())
+            return queue;
+        return new InstrumentedQueue(queue, transferPriority, owner);
+    }
+
     /**
      * Get the priority of the specified thread. Must be called with
      * interrupts disabled.
@@ -154,4 +215,101 @@ public abstract class Scheduler {
     public boolean decreasePriority() {
         return false;
     }
+
+    /**
+     * Notify the scheduler that the specified thread is now running.
+     * <tt>KThread.restoreState()</tt> calls this method, with interrupts
+     * disabled, every time a thread is dispatched.
+     *
+     * @param    thread    the thread that is now running.
+     */
+    public void runningThread(KThread thread) {
+    }
+
+    /**
+     * Notify the scheduler that the current thread is finishing.
+     * <tt>KThread.finish()</tt> calls this method, with interrupts disabled,
+     * before the thread sleeps for the last time.
+     *
+     * @param    thread    the finishing thread.
+     */
+    public void finishingThread(KThread thread) {
+    }
+
+    /**
+     * Notify the scheduler that a timer interrupt occurred. Called by the
+     * alarm's timer interrupt handler, with interrupts disabled.
+     *
+     * @return    <tt>true</tt> if the current thread should yield the
+     * processor.
+     */
+    public boolean timerInterrupt() {
+        return false;
+    }
+
+    /**
+     * Notify the scheduler that the current thread is about to block waiting
+     * for a device, such as the console or the file system. Schedulers that
+     * favour interactive threads can use this to raise the thread's priority.
+     */
+    public void waitingForIO() {
+    }
+
+    /**
+     * Make the specified thread a periodic real-time thread, if the scheduler
+     * supports real-time threads and can still meet every deadline with the
+     * thread added. Its first period starts now.
+     *
+     * @param    thread    the thread to make real-time.
+     * @param    period    the time between releases of the thread's jobs.
+     * @param    deadline    the time after each release by which the job
+     * must be finished.
+     * @param    budget    the worst-case execution time of a job.
+     * @return    <tt>true</tt> if the thread was admitted.
+     */
+    public boolean setRealTime(KThread thread, long period, long deadline,
+                               long budget) {
+        return false;
+    }
+
+    /**
+     * Return the specified real-time thread to normal scheduling, releasing
+     * its share of the processor.
+     *
+     * @param    thread    the real-time thread.
+     */
+    public void clearRealTime(KThread thread) {
+    }
+
+    /**
+     * Finish the current job of the current real-time thread, and sleep until
+     * the start of its next period. Returns immediately for a thread that is
+     * not real-time. Must be called with interrupts enabled.
+     */
+    public void waitForNextPeriod() {
+    }
+
+    /**
+     * Put the specified thread in a scheduling group, such as the threads of
+     * one user process, if the scheduler supports groups. A scheduler that
+     * does may share the processor between groups first, and then between
+     * the threads of each group, so that a group does not get a larger share
+     * by having more threads. The thread must not be waiting on a queue.
+     *
+     * @param    thread    the thread to put in the group.
+     * @param    group    any object identifying the group, or <tt>null</tt> to
+     * take the thread out of its group.
+     */
+    public void setGroup(KThread thread, Object group) {
+    }
+
+    /**
+     * Set the share of the processor given to a scheduling group, in
+     * scheduler-dependent units.
+     *
+     * @param    group    the object identifying the group.
+     * @param    tickets    the group's new share.
+     */
+    public void setGroupTickets(Object group, int tickets) {
+    }
 }
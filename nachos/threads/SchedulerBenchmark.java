@@ -0,0 +1,191 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+
+/**
+ * A kernel that runs a synthetic workload of kernel threads under the
+ * configured scheduler and prints one line of measurements, so schedulers can
+ * be compared and tracked for regressions. Select it with
+ * <tt>Kernel.kernel = nachos.threads.SchedulerBenchmark</tt>.
+ * <p/>
+ * <p/>
+ * Each of <tt>SchedulerBenchmark.threads</tt> threads repeats an operation
+ * until <tt>SchedulerBenchmark.duration</tt> ticks have passed. The
+ * operation, chosen by <tt>SchedulerBenchmark.workload</tt>, is one of:
+ * <ul>
+ * <li><tt>cpu</tt>: run for <tt>SchedulerBenchmark.work</tt> ticks, then
+ * yield. The latency is the time from the yield until the thread runs
+ * again.
+ * <li><tt>io</tt>: run for <tt>work</tt> ticks, then sleep on the alarm for
+ * <tt>SchedulerBenchmark.sleep</tt> ticks. The latency is the time from the
+ * end of the sleep until the thread runs again.
+ * <li><tt>lock</tt>: acquire a lock shared by all threads, run for
+ * <tt>work</tt> ticks and yield while holding it, then release it. The
+ * latency is the time spent waiting for the lock.
+ * </ul>
+ * The priorities of the threads are taken in turn from the comma-separated
+ * list <tt>SchedulerBenchmark.priorities</tt>.
+ * <p/>
+ * <p/>
+ * The result is printed as a single line of <tt>key=value</tt> pairs after
+ * the word <tt>schedbench</tt>: the operations finished per 1000 ticks, the
+ * median and 99th percentile latency in ticks, Jain's fairness index over the
+ * operations finished by each thread (1 when every thread finished the same
+ * number), and the host nanoseconds spent per dispatch.
+ */
+public class SchedulerBenchmark extends ThreadedKernel {
+    /**
+     * Allocate a new scheduler benchmark kernel.
+     */
+    public SchedulerBenchmark() {
+        super();
+    }
+
+    /**
+     * Read the workload from the configuration file.
+     */
+    public void initialize(String[] args) {
+        super.initialize(args);
+
+        workload = Config.getString("SchedulerBenchmark.workload", "cpu");
+        Lib.assertTrue(workload.equals("cpu") || workload.equals("io")
+                || workload.equals("lock"));
+        numThreads = Config.getInteger("SchedulerBenchmark.threads", 8);
+        duration = Config.getInteger("SchedulerBenchmark.duration", 200000);
+        work = Config.getInteger("SchedulerBenchmark.work", 100);
+        sleep = Config.getInteger("SchedulerBenchmark.sleep", 1000);
+
+        String[] list =
+                Config.getString("SchedulerBenchmark.priorities", "1").split(",");
+        priorities = new int[list.length];
+        for (int i = 0; i < list.length; i++)
+            priorities[i] = Integer.parseInt(list[i].trim());
+    }
+
+    /**
+     * The benchmark does not run the kernel self tests.
+     */
+    public void selfTest() {
+    }
+
+    /**
+     * Run the workload and print the measurements.
+     */
+    public void run() {
+        lock = new Lock();
+        KThread[] threads = new KThread[numThreads];
+        ops = new int[numThreads];
+
+        long startTicks = Machine.timer().getTime();
+        int startDispatches = Machine.stats().numDispatches;
+        long startNanos = System.nanoTime();
+        end = startTicks + duration;
+
+        for (int i = 0; i < numThreads; i++) {
+            threads[i] = new KThread(new Worker(i)).setName("bench_" + i);
+            boolean intStatus = Machine.interrupt().disable();
+            scheduler.setPriority(threads[i],
+                    priorities[i % priorities.length]);
+            Machine.interrupt().restore(intStatus);
+            threads[i].fork();
+        }
+        for (int i = 0; i < numThreads; i++)
+            threads[i].join();
+
+        long nanos = System.nanoTime() - startNanos;
+        long ticks = Machine.timer().getTime() - startTicks;
+        int dispatches = Machine.stats().numDispatches - startDispatches;
+
+        long total = 0;
+        double squares = 0;
+        for (int i = 0; i < numThreads; i++) {
+            total += ops[i];
+            squares += (double) ops[i] * ops[i];
+        }
+        double jain = (squares == 0) ? 1
+                : (double) total * total / (numThreads * squares);
+
+        long[] sorted = Arrays.copyOf(latencies, numLatencies);
+        Arrays.sort(sorted);
+
+        System.out.println("schedbench"
+                + " scheduler=" + scheduler.getClass().getName()
+                + " workload=" + workload
+                + " threads=" + numThreads
+                + " ticks=" + ticks
+                + " ops=" + total
+                + " throughput=" + String.format("%.3f", total * 1000.0 / ticks)
+                + " p50=" + percentile(sorted, 50)
+                + " p99=" + percentile(sorted, 99)
+                + " jain=" + String.format("%.4f", jain)
+                + " dispatches=" + dispatches
+                + " host_ns_per_dispatch="
+                + (dispatches == 0 ? 0 : nanos / dispatches));
+    }
+
+    private static long percentile(long[] sorted, int p) {
+        if (sorted.length == 0)
+            return 0;
+        int rank = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, rank)];
+    }
+
+    private void record(long latency) {
+        if (numLatencies == latencies.length)
+            latencies = Arrays.copyOf(latencies, latencies.length * 2);
+        latencies[numLatencies++] = latency;
+    }
+
+    private static void spin(long ticks) {
+        long start = Machine.timer().getTime();
+        while (Machine.timer().getTime() - start < ticks) {
+            Machine.interrupt().disable();
+            Machine.interrupt().enable();
+        }
+    }
+
+    private class Worker implements Runnable {
+        Worker(int index) {
+            this.index = index;
+        }
+
+        public void run() {
+            while (Machine.timer().getTime() < end) {
+                if (workload.equals("cpu")) {
+                    spin(work);
+                    long yielded = Machine.timer().getTime();
+                    KThread.yield();
+                    record(Machine.timer().getTime() - yielded);
+                } else if (workload.equals("io")) {
+                    spin(work);
+                    long wake = Machine.timer().getTime() + sleep;
+                    alarm.waitUntil(sleep);
+                    record(Machine.timer().getTime() - wake);
+                } else {
+                    long requested = Machine.timer().getTime();
+                    lock.acquire();
+                    record(Machine.timer().getTime() - requested);
+                    spin(work);
+                    KThread.yield();
+                    lock.release();
+                }
+                ops[index]++;
+            }
+        }
+
+        private int index;
+    }
+
+    private String workload;
+    private int numThreads;
+    private long duration, work, sleep;
+    private int[] priorities;
+
+    private long end;
+    private Lock lock;
+    private int[] ops;
+    private long[] latencies = new long[1024];
+    private int numLatencies = 0;
+}
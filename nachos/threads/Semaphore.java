@@ -44,6 +44,7 @@ public class Semaphore {
             value--;
         }
 
+        Machine.interrupt().charge("semaphore");
         Machine.interrupt().restore(intStatus);
     }
 
@@ -61,6 +62,7 @@ public class Semaphore {
             value++;
         }
 
+        Machine.interrupt().charge("semaphore");
         Machine.interrupt().restore(intStatus);
     }
 
@@ -98,5 +100,5 @@ public class Semaphore {
 
     private int value;
     private ThreadQueue waitQueue =
-            ThreadedKernel.scheduler.newThreadQueue(false);
+            ThreadedKernel.scheduler.newThreadQueue(false, "Semaphore");
 }
@@ -0,0 +1,590 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A scheduler that chooses threads using stride scheduling.
+ * <p/>
+ * <p/>
+ * Like a lottery scheduler, a stride scheduler associates a number of tickets
+ * with each thread, and each thread receives access in proportion to its
+ * tickets. Instead of holding a random lottery, every thread carries a
+ * <i>pass</i> value that advances by its <i>stride</i> (a large constant
+ * divided by its tickets) each time the ready queue dispatches it, and the
+ * thread with the smallest pass is always chosen next. The schedule is
+ * therefore deterministic, and over any interval each thread's share differs
+ * from its exact proportional share by less than one quantum. Other queues
+ * also grant access in order of pass, but do not advance it.
+ * <p/>
+ * <p/>
+ * When the tickets of a thread change, the pass it has left to cover before
+ * its next turn is scaled to the new stride, so the change takes effect at
+ * once rather than after its next turn.
+ * <p/>
+ * <p/>
+ * Tickets are transferred through locks and through joins exactly as in
+ * <tt>LotteryScheduler</tt>: they add, so the effective tickets of a thread
+ * are its own tickets plus the effective tickets of every thread waiting for
+ * it.
+ */
+public class StrideScheduler extends PriorityScheduler {
+    /**
+     * Allocate a new stride scheduler.
+     */
+    public StrideScheduler() {
+    }
+
+    /**
+     * Allocate a new stride thread queue.
+     *
+     * @param    transferPriority    <tt>true</tt> if this queue should
+     * transfer tickets from waiting threads
+     * to the owning thread.
+     * @return a new stride thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+        return new StrideQueue(transferPriority);
+    }
+
+    /**
+     * Allocate the ready queue, and remember it: only its dispatches advance
+     * the pass of a thread.
+     *
+     * @return a new ready queue.
+     */
+    protected ThreadQueue createReadyQueue() {
+        readyQueue = new StrideQueue(false);
+        readyQueue.ready = true;
+        return readyQueue;
+    }
+
+    protected static StrideState getThreadState(KThread thread) {
+        if (thread.schedulingState == null)
+            thread.schedulingState = new StrideState(thread);
+        return (StrideState) thread.schedulingState;
+    }
+
+    public int getPriority(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+        return getThreadState(thread).origTickets;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+        return (int) Math.min(getThreadState(thread).tickets,
+                Integer.MAX_VALUE);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+        boolean intStatus = Machine.interrupt().disable();
+
+        Lib.assertTrue(priority > 0 && priority <= Integer.MAX_VALUE);
+        getThreadState(thread).setTickets(priority);
+
+        Machine.interrupt().restore(intStatus);
+    }
+
+    public boolean increasePriority() {
+        boolean intStatus = Machine.interrupt().disable();
+        KThread thread = KThread.currentThread();
+        int prio = getPriority(thread);
+        if (prio == Integer.MAX_VALUE) {
+            Machine.interrupt().restore(intStatus);
+            return false;
+        }
+        setPriority(thread, prio + 1);
+        Machine.interrupt().restore(intStatus);
+        return true;
+    }
+
+    public boolean decreasePriority() {
+        boolean intStatus = Machine.interrupt().disable();
+        KThread thread = KThread.currentThread();
+        int prio = getPriority(thread);
+        if (prio == 1) {
+            Machine.interrupt().restore(intStatus);
+            return false;
+        }
+        setPriority(thread, prio - 1);
+        Machine.interrupt().restore(intStatus);
+        return true;
+    }
+
+    /**
+     * The pass distance covered by a thread holding a single ticket. Large
+     * enough that the stride of <tt>Integer.MAX_VALUE</tt> tickets is still
+     * far from zero. Effective tickets are summed in a <tt>long</tt>, so
+     * donation cannot overflow them; a stride is never less than 1.
+     */
+    public static final long stride1 = 1L << 40;
+
+    /**
+     * Charge a thread for being granted access by a queue. Advances its
+     * pass by its stride if the queue is the ready queue.
+     *
+     * @param    queue    the queue that granted access.
+     * @param    state    the scheduling state of the granted thread.
+     */
+    protected void granted(StrideQueue queue, StrideState state) {
+        if (queue == readyQueue)
+            state.pass += Math.max(1, stride1 / state.tickets);
+    }
+
+    /**
+     * Called when a thread starts waiting on a queue, before it is placed in
+     * the queue's heap. Does nothing.
+     *
+     * @param    queue    the queue the thread waits on.
+     * @param    state    the scheduling state of the waiting thread.
+     */
+    protected void waiting(StrideQueue queue, StrideState state) {
+    }
+
+    /**
+     * The ready queue, or <tt>null</tt> if this scheduler is not the one
+     * threads run under.
+     */
+    protected StrideQueue readyQueue = null;
+
+    /**
+     * A <tt>ThreadQueue</tt> that keeps its waiters in a binary min-heap on
+     * pass value, breaking ties in FIFO order.
+     */
+    protected class StrideQueue extends ThreadQueue {
+        StrideQueue(boolean transferTickets) {
+            this.transferTickets = transferTickets;
+        }
+
+        public void waitForAccess(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+            StrideState state = getThreadState(thread);
+            waiting(this, state);
+            state.waitForAccess(this);
+        }
+
+        public void acquire(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+            getThreadState(thread).acquire(this);
+        }
+
+        public void addHolder(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+            hold(getThreadState(thread));
+        }
+
+        public void removeHolder(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+            int i = holderIndex(getThreadState(thread));
+            if (i >= 0)
+                release(i);
+        }
+
+        public KThread nextThread() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            releaseHolders();
+            if (size == 0)
+                return null;
+
+            StrideState next = pop();
+            if (!next.loop)
+                waiting -= next.tickets;
+            next.queue = null;
+
+            virtualTime = next.pass;
+            if (ready)
+                next.dispatchedAt = virtualTime;
+            granted(this, next);
+
+            next.acquire(this);
+            return next.thread;
+        }
+
+        public void print() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            for (int i = 0; i < size; i++)
+                System.out.print(heap[i].thread + " ");
+        }
+
+        /**
+         * Give access to <i>state</i> as well, together with the tickets of
+         * the waiting threads.
+         */
+        private void hold(StrideState state) {
+            if (holderIndex(state) >= 0)
+                return;
+            if (holderCount == holders.length) {
+                StrideState[] grown = new StrideState[holderCount * 2];
+                System.arraycopy(holders, 0, grown, 0, holderCount);
+                holders = grown;
+            }
+            holders[holderCount++] = state;
+            if (transferTickets && waiting != 0)
+                state.changeTickets(waiting);
+        }
+
+        /**
+         * Take away access from the holder at position <tt>i</tt>, together
+         * with the tickets of the waiting threads.
+         */
+        private void release(int i) {
+            StrideState state = holders[i];
+            holders[i] = holders[--holderCount];
+            holders[holderCount] = null;
+            if (transferTickets && waiting != 0)
+                state.changeTickets(-waiting);
+        }
+
+        private void releaseHolders() {
+            while (holderCount > 0)
+                release(holderCount - 1);
+        }
+
+        private int holderIndex(StrideState state) {
+            for (int i = 0; i < holderCount; i++) {
+                if (holders[i] == state)
+                    return i;
+            }
+            return -1;
+        }
+
+        private void push(StrideState state) {
+            if (size == heap.length) {
+                StrideState[] grown = new StrideState[heap.length * 2];
+                System.arraycopy(heap, 0, grown, 0, size);
+                heap = grown;
+            }
+            state.sequence = sequence++;
+            heap[size] = state;
+            siftUp(size++);
+        }
+
+        /**
+         * Restore the heap order around a waiter whose pass has changed.
+         */
+        private void reposition(StrideState state) {
+            siftUp(state.index);
+            siftDown(state.index);
+        }
+
+        private StrideState pop() {
+            StrideState top = heap[0];
+            heap[0] = heap[--size];
+            heap[size] = null;
+            if (size > 0)
+                siftDown(0);
+            return top;
+        }
+
+        private boolean before(StrideState a, StrideState b) {
+            if (a.pass != b.pass)
+                return a.pass < b.pass;
+            return a.sequence < b.sequence;
+        }
+
+        private void siftUp(int pos) {
+            StrideState state = heap[pos];
+            while (pos > 0) {
+                int up = (pos - 1) >> 1;
+                if (!before(state, heap[up]))
+                    break;
+                heap[pos] = heap[up];
+                heap[pos].index = pos;
+                pos = up;
+            }
+            heap[pos] = state;
+            state.index = pos;
+        }
+
+        private void siftDown(int pos) {
+            StrideState state = heap[pos];
+            while (2 * pos + 1 < size) {
+                int child = 2 * pos + 1;
+                if (child + 1 < size && before(heap[child + 1], heap[child]))
+                    child++;
+                if (!before(heap[child], state))
+                    break;
+                heap[pos] = heap[child];
+                heap[pos].index = pos;
+                pos = child;
+            }
+            heap[pos] = state;
+            state.index = pos;
+        }
+
+        protected StrideState[] heap = new StrideState[4];
+        protected int size = 0;
+        private long sequence = 0;
+
+        /**
+         * Whether this is the ready queue.
+         */
+        protected boolean ready = false;
+        /**
+         * The pass value of the thread most recently granted access. A
+         * thread that joins the queue is never placed before it, so time
+         * spent blocked is not banked as credit.
+         */
+        protected long virtualTime = 0;
+        /**
+         * Sum of the effective tickets of the waiting threads.
+         */
+        private long waiting = 0;
+
+        private boolean transferTickets;
+        /**
+         * The threads with access, in the first <tt>holderCount</tt>
+         * entries. Each receives the tickets of all the waiting threads.
+         */
+        private StrideState[] holders = new StrideState[1];
+        private int holderCount = 0;
+    }
+
+    protected static class StrideState extends ThreadState {
+        public StrideState(KThread thread) {
+            super(thread);
+            tickets = 1;
+            origTickets = 1;
+        }
+
+        public int getEffectivePriority() {
+            return (int) Math.min(tickets, Integer.MAX_VALUE);
+        }
+
+        public void setTickets(int num) {
+            long diff = (long) num - origTickets;
+            origTickets = num;
+            if (diff != 0)
+                changeTickets(diff);
+        }
+
+        /**
+         * Add <tt>diff</tt> to the effective tickets of this thread and of
+         * every thread it donates to, through all the threads with access
+         * to each queue along the way.
+         */
+        private void changeTickets(long diff) {
+            rescale(tickets + diff);
+            if (loop || queue == null)
+                return;
+            StrideQueue Q = queue;
+            Q.waiting += diff;
+            if (Q.transferTickets) {
+                for (int i = 0; i < Q.holderCount; i++)
+                    Q.holders[i].changeTickets(diff);
+            }
+        }
+
+        /**
+         * Set the effective tickets of this thread, scaling the pass it has
+         * left to cover by the ratio of its old stride to its new one. The
+         * pass left is measured from the virtual time of the ready queue
+         * while the thread waits on it, and otherwise from the virtual time
+         * when it was last dispatched.
+         */
+        private void rescale(long newTickets) {
+            boolean ready = queue != null && queue.ready;
+            long from = ready ? queue.virtualTime : dispatchedAt;
+            if (pass > from) {
+                pass = from + (long) ((double) (pass - from)
+                        * tickets / newTickets);
+                if (queue != null)
+                    queue.reposition(this);
+            }
+            tickets = newTickets;
+        }
+
+        public void acquire(StrideQueue waitQueue) {
+            if (waitQueue.holderCount == 1 && waitQueue.holders[0] == this)
+                return;
+            waitQueue.releaseHolders();
+            waitQueue.hold(this);
+        }
+
+        /**
+         * Test whether this thread, by waiting on <tt>queue</tt>, now waits
+         * for itself through the threads with access to the queues along
+         * the way.
+         */
+        private boolean checkLoop() {
+            return queue.transferTickets && waitsFor(queue, this);
+        }
+
+        private static boolean waitsFor(StrideQueue Q, StrideState target) {
+            for (int i = 0; i < Q.holderCount; i++) {
+                StrideState holder = Q.holders[i];
+                if (holder == target)
+                    return true;
+                if (!holder.loop && holder.queue != null
+                        && holder.queue.transferTickets
+                        && waitsFor(holder.queue, target))
+                    return true;
+            }
+            return false;
+        }
+
+        public void waitForAccess(StrideQueue waitQueue) {
+            int held = waitQueue.holderIndex(this);
+            if (held >= 0)
+                waitQueue.release(held);
+
+            queue = waitQueue;
+            if (pass < waitQueue.virtualTime)
+                pass = waitQueue.virtualTime;
+            waitQueue.push(this);
+
+            if (checkLoop()) {
+                System.out.println("user deadlock");
+                loop = true;
+                return;
+            }
+
+            waitQueue.waiting += tickets;
+            if (waitQueue.transferTickets) {
+                for (int i = 0; i < waitQueue.holderCount; i++)
+                    waitQueue.holders[i].changeTickets(tickets);
+            }
+        }
+
+        public StrideQueue queue = null;
+        public long tickets;
+        public int origTickets;
+        private boolean loop = false;
+
+        protected long pass = 0;
+        /**
+         * The virtual time of the ready queue when this thread was last
+         * dispatched.
+         */
+        private long dispatchedAt = 0;
+        private long sequence;
+        private int index;
+    }
+
+    /**
+     * Hand out <tt>rounds</tt> quanta among threads holding the given
+     * tickets, once with a lottery queue and once with a stride queue, and
+     * print the largest deviation (in quanta) of any thread from its exact
+     * share every <tt>step</tt> rounds.
+     * <p/>
+     * <p/>
+     * The threads are never forked; they only carry scheduling state for
+     * the two queues under test.
+     */
+    public static void shareBenchmark(int[] tickets, int rounds, int step) {
+        Scheduler[] schedulers = {new LotteryScheduler(), new StrideScheduler()};
+        long[][] errors = new long[schedulers.length][rounds / step];
+        long total = 0;
+        for (int i = 0; i < tickets.length; i++)
+            total += tickets[i];
+
+        boolean intStatus = Machine.interrupt().disable();
+        for (int s = 0; s < schedulers.length; s++) {
+            ThreadQueue queue = schedulers[s].newReadyQueue();
+            KThread[] threads = new KThread[tickets.length];
+            long[] received = new long[tickets.length];
+            for (int i = 0; i < tickets.length; i++) {
+                threads[i] = new KThread();
+                threads[i].schedulingState = null;
+                schedulers[s].setPriority(threads[i], tickets[i]);
+                queue.waitForAccess(threads[i]);
+            }
+            for (int r = 1; r <= rounds; r++) {
+                KThread thread = queue.nextThread();
+                for (int i = 0; i < tickets.length; i++) {
+                    if (threads[i] == thread)
+                        received[i]++;
+                }
+                queue.waitForAccess(thread);
+                if (r % step == 0) {
+                    double worst = 0;
+                    for (int i = 0; i < tickets.length; i++)
+                        worst = Math.max(worst, Math.abs(received[i]
+                                - (double) r * tickets[i] / total));
+                    errors[s][r / step - 1] = Math.round(worst);
+                }
+            }
+        }
+        Machine.interrupt().restore(intStatus);
+
+        System.out.println("rounds lottery_error stride_error");
+        for (int k = 0; k < rounds / step; k++)
+            System.out.println(((k + 1) * step) + " " + errors[0][k]
+                    + " " + errors[1][k]);
+    }
+
+    /**
+     * Check that only the ready queue advances pass, that doubling the
+     * tickets of a thread that has just been dispatched halves the pass it
+     * has left to cover, and that donated tickets do not overflow.
+     */
+    private static void passTest() {
+        StrideScheduler scheduler = new StrideScheduler();
+
+        boolean intStatus = Machine.interrupt().disable();
+        ThreadQueue ready = scheduler.newReadyQueue();
+        ThreadQueue lock = scheduler.newThreadQueue(true);
+        KThread a = new KThread(), b = new KThread();
+        a.schedulingState = b.schedulingState = null;
+        scheduler.setPriority(a, 100);
+        scheduler.setPriority(b, 100);
+
+        lock.waitForAccess(b);
+        Lib.assertTrue(lock.nextThread() == b);
+        Lib.assertTrue(getThreadState(b).pass == 0);
+        lock.nextThread();
+
+        ready.waitForAccess(a);
+        ready.waitForAccess(b);
+        Lib.assertTrue(ready.nextThread() == a);
+        Lib.assertTrue(getThreadState(a).pass == stride1 / 100);
+        scheduler.setPriority(a, 200);
+        Lib.assertTrue(getThreadState(a).pass == stride1 / 200);
+        ready.nextThread();
+
+        // donated tickets add up past Integer.MAX_VALUE without wrapping
+        scheduler.setPriority(a, Integer.MAX_VALUE);
+        scheduler.setPriority(b, Integer.MAX_VALUE);
+        lock.acquire(a);
+        lock.waitForAccess(b);
+        Lib.assertTrue(getThreadState(a).tickets == 2L * Integer.MAX_VALUE);
+        Lib.assertTrue(scheduler.getEffectivePriority(a) == Integer.MAX_VALUE);
+        Lib.assertTrue(lock.nextThread() == b);
+        Lib.assertTrue(getThreadState(a).tickets == Integer.MAX_VALUE);
+        lock.nextThread();
+        Machine.interrupt().restore(intStatus);
+    }
+
+    private static class SpinTest implements Runnable {
+        public void run() {
+            for (int i = 0; i < 5; i++) {
+                System.out.println(KThread.currentThread().getName() + " "
+                        + getThreadState(KThread.currentThread()).tickets);
+                KThread.yield();
+            }
+        }
+    }
+
+    /**
+     * Tests whether this module is working. Must run with
+     * <tt>StrideScheduler</tt> as the kernel scheduler.
+     */
+    public static void selfTest() {
+        System.out.println("Begin Stride test");
+
+        KThread[] threads = new KThread[3];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new KThread(new SpinTest()).setName("stride_" + i);
+            ThreadedKernel.scheduler.setPriority(threads[i], 100 * (i + 1));
+            threads[i].fork();
+        }
+        for (int i = 0; i < threads.length; i++)
+            threads[i].join();
+
+        passTest();
+        shareBenchmark(new int[]{100, 200, 300}, 6000, 600);
+
+        System.out.println("End Stride test");
+    }
+}
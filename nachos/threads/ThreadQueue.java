@@ -91,6 +91,34 @@ public abstract class ThreadQueue {
      */
     public abstract void acquire(KThread thread);
 
+    /**
+     * Give access to the specified thread as well as to any threads that
+     * already have it, as when a readers-writer lock is held by several
+     * readers. Unlike <tt>acquire()</tt>, this may be called while threads
+     * are waiting. If this queue transfers priority, the waiting threads
+     * donate to every thread with access.
+     * <p/>
+     * <p/>
+     * <tt>nextThread()</tt> and <tt>acquire()</tt> take access away from
+     * every thread that has it. The default implementation does nothing,
+     * which is right for a queue that does not transfer priority.
+     *
+     * @param    thread    the thread to receive access.
+     */
+    public void addHolder(KThread thread) {
+    }
+
+    /**
+     * Take access away from one thread that has it, together with whatever
+     * the waiting threads donate to it, leaving any other threads with
+     * access. Does nothing if the thread does not have access. The default
+     * implementation does nothing.
+     *
+     * @param    thread    the thread to lose access.
+     */
+    public void removeHolder(KThread thread) {
+    }
+
     /**
      * Print out all the threads waiting for access, in no particular order.
      */
@@ -14,8 +14,8 @@ public class ThreadedKernel extends Kernel {
     }
 
     /**
-     * Initialize this kernel. Creates a scheduler, the first thread, and an
-     * alarm, and enables interrupts. Creates a file system if necessary.
+     * Initialize this kernel. Creates a scheduler, the first thread, the
+     * bottom-half thread and an alarm, and enables interrupts. Creates a file system if necessary.
      */
     public void initialize(String[] args) {
         // set scheduler
@@ -35,6 +35,7 @@ public class ThreadedKernel extends Kernel {
         // start threading
         new KThread(null);
 
+        bottomHalf = new BottomHalf();
         alarm = new Alarm();
 
         System.out.println("End init");
@@ -51,11 +52,22 @@ public class ThreadedKernel extends Kernel {
         KThread.selfTest();         // task1
         Semaphore.selfTest();
         SynchList.selfTest();
+        // BoundedQueue.selfTest();
+        // WorkQueue.selfTest();
+        // BottomHalf.selfTest();
+        // Condition.selfTest();
         // Condition2.selfTest();      // task2
+        // RWLock.selfTest();
         Alarm.selfTest();           // task3
         Communicator.selfTest();    // task4
+        // Channel.selfTest();
         // PriorityScheduler.selfTest();  // task5
         LotteryScheduler.selfTest();
+        // StrideScheduler.selfTest();
+        // MLFQScheduler.selfTest();
+        // FairScheduler.selfTest();
+        // EDFScheduler.selfTest();
+        // SJFScheduler.selfTest();
         // Boat.selfTest();            // task6
         if (Machine.bank() != null) {
             ElevatorBank.selfTest();
@@ -84,6 +96,10 @@ public class ThreadedKernel extends Kernel {
      * Globally accessible reference to the alarm.
      */
     public static Alarm alarm = null;
+    /**
+     * Globally accessible reference to the bottom-half runner.
+     */
+    public static BottomHalf bottomHalf = null;
     /**
      * Globally accessible reference to the file system.
      */
@@ -97,4 +113,9 @@ public class ThreadedKernel extends Kernel {
     private static Communicator dummy5 = null;
     private static Rider dummy6 = null;
     private static ElevatorController dummy7 = null;
+    private static StrideScheduler dummy8 = null;
+    private static MLFQScheduler dummy9 = null;
+    private static FairScheduler dummy10 = null;
+    private static EDFScheduler dummy11 = null;
+    private static SJFScheduler dummy12 = null;
 }
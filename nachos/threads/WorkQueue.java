@@ -0,0 +1,466 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A pool of kernel threads that run <tt>Runnable</tt> tasks handed to it,
+ * so that a subsystem can get work done in the background without starting
+ * a thread per activity.
+ * <p/>
+ * <p/>
+ * A fixed number of worker threads take tasks from a queue holding at most
+ * <i>capacity</i> tasks; submitting to a full queue waits for room. Each task
+ * has a priority: tasks are taken highest priority first, and the worker
+ * runs the task at that priority, so a scheduler that honours priorities,
+ * such as <tt>PriorityScheduler</tt>, gives it the processor accordingly.
+ * A task can also be delayed, in which case it joins the queue when its time
+ * comes; one extra thread sleeps on the alarm until then.
+ * <p/>
+ * <p/>
+ * Submitting a task returns a <tt>Future</tt>, which can be joined to wait
+ * for the task to finish. The queue keeps statistics of its depth and of the
+ * latency of tasks, the ticks from when a task could run until it started.
+ */
+public class WorkQueue {
+    /**
+     * Allocate a new work queue and start its workers.
+     *
+     * @param    workers    the number of worker threads.
+     * @param    capacity    the most tasks that can be waiting, counting
+     * delayed tasks.
+     */
+    public WorkQueue(int workers, int capacity) {
+        Lib.assertTrue(workers > 0 && capacity > 0);
+
+        this.capacity = capacity;
+        ready = new Future[capacity];
+        delayed = new Future[capacity];
+
+        lock = new Lock();
+        notEmpty = new Condition2(lock);
+        notFull = new Condition2(lock);
+        delayerIdle = new Condition2(lock);
+
+        this.workers = new KThread[workers];
+        for (int i = 0; i < workers; i++) {
+            this.workers[i] = new KThread(new Runnable() {
+                public void run() {
+                    work();
+                }
+            }).setName("worker" + i);
+            this.workers[i].fork();
+        }
+        delayer = new KThread(new Runnable() {
+            public void run() {
+                delay();
+            }
+        }).setName("work delayer");
+        delayer.fork();
+    }
+
+    /**
+     * Queue a task at the priority of the current thread, waiting for room
+     * if the queue is full.
+     *
+     * @param    task    the task to run.
+     * @return a future for the task.
+     */
+    public Future submit(Runnable task) {
+        boolean intStatus = Machine.interrupt().disable();
+        int priority = ThreadedKernel.scheduler.getPriority();
+        Machine.interrupt().restore(intStatus);
+
+        return schedule(task, priority, 0);
+    }
+
+    /**
+     * Queue a task at the specified priority, waiting for room if the queue
+     * is full.
+     *
+     * @param    task    the task to run.
+     * @param    priority    the priority to run it at.
+     * @return a future for the task.
+     */
+    public Future submit(Runnable task, int priority) {
+        return schedule(task, priority, 0);
+    }
+
+    /**
+     * Queue a task to be run at the specified priority once <i>delay</i>
+     * ticks have passed, waiting for room if the queue is full.
+     *
+     * @param    task    the task to run.
+     * @param    priority    the priority to run it at.
+     * @param    delay    the least number of ticks to wait before running
+     * the task.
+     * @return a future for the task.
+     */
+    public Future schedule(Runnable task, int priority, long delay) {
+        Lib.assertTrue(task != null && delay >= 0);
+
+        lock.acquire();
+        Lib.assertTrue(!shutdown);
+
+        while (pending == capacity)
+            notFull.sleep();
+        pending++;
+        maxDepth = Math.max(maxDepth, pending);
+
+        long now = Machine.timer().getTime();
+        Future future = new Future(task, priority, now + delay, nextSeq++);
+        if (delay == 0) {
+            push(ready, numReady++, future, false);
+            notEmpty.wake();
+        } else {
+            push(delayed, numDelayed++, future, true);
+            if (delayed[0] == future) {
+                // the delayer may be sleeping until a later task is due
+                delayerIdle.wake();
+                if (delayerSleeping)
+                    ThreadedKernel.alarm.cancel(delayer);
+            }
+        }
+
+        lock.release();
+        return future;
+    }
+
+    /**
+     * Stop accepting tasks, and wait until all queued and delayed tasks have
+     * run and the workers have finished.
+     */
+    public void shutdown() {
+        lock.acquire();
+        shutdown = true;
+        notEmpty.wakeAll();
+        delayerIdle.wake();
+        lock.release();
+
+        delayer.join();
+        for (int i = 0; i < workers.length; i++)
+            workers[i].join();
+    }
+
+    /**
+     * Return the number of tasks waiting to run, counting delayed tasks.
+     *
+     * @return the number of tasks waiting.
+     */
+    public int depth() {
+        return pending;
+    }
+
+    /**
+     * Return the largest number of tasks that have been waiting at once.
+     *
+     * @return the largest depth of the queue.
+     */
+    public int maxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Return the number of tasks that have finished running.
+     *
+     * @return the number of tasks completed.
+     */
+    public long completed() {
+        return completed;
+    }
+
+    /**
+     * Return the average number of ticks a task waited after it could have
+     * run until a worker started it.
+     *
+     * @return the average latency, in ticks.
+     */
+    public long averageLatency() {
+        return (started == 0) ? 0 : totalLatency / started;
+    }
+
+    /**
+     * Return the longest a task waited after it could have run until a
+     * worker started it.
+     *
+     * @return the maximum latency, in ticks.
+     */
+    public long maxLatency() {
+        return maxLatency;
+    }
+
+    /**
+     * Print the queue's statistics.
+     */
+    public void print() {
+        System.out.println("workqueue workers=" + workers.length
+                + " depth=" + depth() + " max_depth=" + maxDepth()
+                + " completed=" + completed()
+                + " avg_latency=" + averageLatency()
+                + " max_latency=" + maxLatency());
+    }
+
+    /**
+     * The loop run by each worker thread.
+     */
+    private void work() {
+        KThread thread = KThread.currentThread();
+
+        lock.acquire();
+        while (true) {
+            while (numReady == 0 && !(shutdown && numDelayed == 0))
+                notEmpty.sleep();
+            if (numReady == 0)
+                break;
+
+            Future future = pop(ready, --numReady, false);
+            pending--;
+            notFull.wake();
+
+            long latency = Machine.timer().getTime() - future.readyTime;
+            started++;
+            totalLatency += latency;
+            maxLatency = Math.max(maxLatency, latency);
+            lock.release();
+
+            boolean intStatus = Machine.interrupt().disable();
+            int priority = ThreadedKernel.scheduler.getPriority(thread);
+            ThreadedKernel.scheduler.setPriority(thread, future.priority);
+            Machine.interrupt().restore(intStatus);
+
+            future.task.run();
+
+            intStatus = Machine.interrupt().disable();
+            ThreadedKernel.scheduler.setPriority(thread, priority);
+            Machine.interrupt().restore(intStatus);
+
+            lock.acquire();
+            future.done = true;
+            completed++;
+            if (future.finished != null)
+                future.finished.wakeAll();
+        }
+        lock.release();
+    }
+
+    /**
+     * The loop run by the delayer thread, which moves each delayed task to
+     * the queue when it is due.
+     */
+    private void delay() {
+        lock.acquire();
+        while (!(shutdown && numDelayed == 0)) {
+            if (numDelayed == 0) {
+                delayerIdle.sleep();
+                continue;
+            }
+
+            long wait = delayed[0].readyTime - Machine.timer().getTime();
+            if (wait > 0) {
+                // as in Condition2.sleep(), release the lock and sleep
+                // atomically, so that schedule() can cancel the sleep
+                boolean intStatus = Machine.interrupt().disable();
+                delayerSleeping = true;
+                lock.release();
+                ThreadedKernel.alarm.timedWait(wait);
+                delayerSleeping = false;
+                Machine.interrupt().restore(intStatus);
+                lock.acquire();
+                continue;
+            }
+
+            Future future = pop(delayed, --numDelayed, true);
+            future.readyTime = Machine.timer().getTime();
+            push(ready, numReady++, future, false);
+            notEmpty.wake();
+        }
+        notEmpty.wakeAll();
+        lock.release();
+    }
+
+    /**
+     * Test whether <i>a</i> should come out of a heap before <i>b</i>: by
+     * time for the delayed heap, by priority for the ready heap, and in the
+     * order they were submitted otherwise.
+     */
+    private static boolean before(Future a, Future b, boolean byTime) {
+        if (byTime && a.readyTime != b.readyTime)
+            return a.readyTime < b.readyTime;
+        if (!byTime && a.priority != b.priority)
+            return a.priority > b.priority;
+        return a.seq < b.seq;
+    }
+
+    /**
+     * Add a future to a heap holding <i>size</i> futures.
+     */
+    private static void push(Future[] heap, int size, Future future,
+                             boolean byTime) {
+        int i = size;
+        while (i > 0 && before(future, heap[(i - 1) / 2], byTime)) {
+            heap[i] = heap[(i - 1) / 2];
+            i = (i - 1) / 2;
+        }
+        heap[i] = future;
+    }
+
+    /**
+     * Remove the first future from a heap that will hold <i>size</i>
+     * futures afterwards.
+     */
+    private static Future pop(Future[] heap, int size, boolean byTime) {
+        Future first = heap[0];
+        Future last = heap[size];
+        heap[size] = null;
+        if (size == 0)
+            return first;
+
+        int i = 0;
+        while (2 * i + 1 < size) {
+            int child = 2 * i + 1;
+            if (child + 1 < size && before(heap[child + 1], heap[child], byTime))
+                child++;
+            if (!before(heap[child], last, byTime))
+                break;
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = last;
+        return first;
+    }
+
+    /**
+     * A task submitted to a work queue, which can be joined to wait for the
+     * task to finish.
+     */
+    public class Future {
+        private Future(Runnable task, int priority, long readyTime, long seq) {
+            this.task = task;
+            this.priority = priority;
+            this.readyTime = readyTime;
+            this.seq = seq;
+        }
+
+        /**
+         * Wait for the task to finish running. Returns immediately if it
+         * already has.
+         */
+        public void join() {
+            lock.acquire();
+            while (!done) {
+                if (finished == null)
+                    finished = new Condition2(lock);
+                finished.sleep();
+            }
+            lock.release();
+        }
+
+        /**
+         * Test whether the task has finished running.
+         *
+         * @return    <tt>true</tt> if the task has finished.
+         */
+        public boolean isDone() {
+            return done;
+        }
+
+        private Runnable task;
+        private int priority;
+        private long readyTime;
+        private long seq;
+        private boolean done = false;
+        private Condition2 finished = null;
+    }
+
+    private static class Recorder implements Runnable {
+        Recorder(StringBuilder log, String name) {
+            this.log = log;
+            this.name = name;
+        }
+
+        public void run() {
+            log.append(name);
+        }
+
+        private StringBuilder log;
+        private String name;
+    }
+
+    /**
+     * Test that tasks run by priority and by due time, that futures can be
+     * joined, and that a full queue holds back submitters.
+     */
+    public static void selfTest() {
+        WorkQueue queue = new WorkQueue(1, 8);
+        final Semaphore gate = new Semaphore(0);
+        StringBuilder log = new StringBuilder();
+
+        System.out.println("WorkQueue test #1 begin.");
+        queue.submit(new Runnable() {
+            public void run() {
+                gate.P();
+            }
+        }, 1);
+        int[] priorities = {2, 5, 1, 4, 3};
+        Future[] futures = new Future[priorities.length];
+        for (int i = 0; i < priorities.length; i++)
+            futures[i] = queue.submit(new Recorder(log, "" + priorities[i]),
+                    priorities[i]);
+        gate.V();
+        for (int i = 0; i < futures.length; i++)
+            futures[i].join();
+        Lib.assertTrue(log.toString().equals("54321"));
+        System.out.println("WorkQueue test #1 end.");
+
+        System.out.println("WorkQueue test #2 begin.");
+        log.setLength(0);
+        long start = Machine.timer().getTime();
+        Future late = queue.schedule(new Recorder(log, "c"), 1, 3000);
+        queue.schedule(new Recorder(log, "a"), 1, 1000);
+        queue.schedule(new Recorder(log, "b"), 1, 2000);
+        late.join();
+        Lib.assertTrue(log.toString().equals("abc"));
+        Lib.assertTrue(Machine.timer().getTime() - start >= 3000);
+        System.out.println("WorkQueue test #2 end.");
+
+        System.out.println("WorkQueue test #3 begin.");
+        queue.submit(new Runnable() {
+            public void run() {
+                gate.P();
+            }
+        }, 1);
+        final WorkQueue full = queue;
+        KThread submitter = new KThread(new Runnable() {
+            public void run() {
+                for (int i = 0; i < 12; i++)
+                    full.submit(new Recorder(new StringBuilder(), "x"), 1);
+            }
+        }).setName("submitter");
+        submitter.fork();
+        while (queue.depth() < 8)
+            ThreadedKernel.alarm.waitUntil(100);
+        Lib.assertTrue(queue.depth() == 8);
+        gate.V();
+        submitter.join();
+        queue.shutdown();
+        Lib.assertTrue(queue.depth() == 0 && queue.maxDepth() == 8);
+        System.out.println("WorkQueue test #3 end.");
+
+        queue.print();
+    }
+
+    private int capacity;
+    private Future[] ready, delayed;
+    private int numReady = 0, numDelayed = 0, pending = 0;
+    private long nextSeq = 0;
+    private boolean shutdown = false;
+
+    private Lock lock;
+    private Condition2 notEmpty, notFull, delayerIdle;
+    private KThread[] workers;
+    private KThread delayer;
+    private boolean delayerSleeping = false;
+
+    private int maxDepth = 0;
+    private long completed = 0, started = 0;
+    private long totalLatency = 0, maxLatency = 0;
+}
@@ -0,0 +1,93 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+
+/**
+ * The kernel half of futexes: queues of user threads waiting for a word of
+ * user memory to change. The queues are kept in a hash table keyed by the
+ * physical address of the word, so that processes sharing a page also share
+ * the futexes in it. A queue is only in the table while threads wait on it;
+ * emptied queues are kept and reused.
+ * <p/>
+ * <p/>
+ * Waiters wait on a <tt>ThreadQueue</tt> of the configured scheduler, so
+ * they are woken in whatever order the scheduler prefers.
+ */
+public class Futex {
+    /**
+     * Put the current thread to sleep on the futex at the specified physical
+     * address, unless the word there no longer equals <i>expected</i>.
+     * Checking the word and going to sleep are atomic, so a thread that
+     * changes the word and then calls <tt>wake()</tt> cannot be missed.
+     *
+     * @param    paddr    the word-aligned physical address of the futex.
+     * @param    expected    the value the caller last saw in the word.
+     * @return    0 after being woken, or -1 if the word did not equal
+     * <i>expected</i>.
+     */
+    public static int wait(int paddr, int expected) {
+        Lib.assertTrue(paddr % 4 == 0);
+
+        boolean intStatus = Machine.interrupt().disable();
+
+        if (Lib.bytesToInt(Machine.processor().getMemory(), paddr)
+                != expected) {
+            Machine.interrupt().restore(intStatus);
+            return -1;
+        }
+
+        WaitQueue queue = queues.get(paddr);
+        if (queue == null) {
+            queue = free.isEmpty() ? new WaitQueue() : free.removeFirst();
+            queues.put(paddr, queue);
+        }
+        queue.waiters++;
+        queue.threads.waitForAccess(KThread.currentThread());
+        KThread.sleep();
+
+        Machine.interrupt().restore(intStatus);
+        return 0;
+    }
+
+    /**
+     * Wake up to <i>count</i> threads sleeping on the futex at the specified
+     * physical address.
+     *
+     * @param    paddr    the word-aligned physical address of the futex.
+     * @param    count    the most threads to wake.
+     * @return the number of threads woken.
+     */
+    public static int wake(int paddr, int count) {
+        boolean intStatus = Machine.interrupt().disable();
+
+        int woken = 0;
+        WaitQueue queue = queues.get(paddr);
+        if (queue != null) {
+            for (; woken < count && queue.waiters > 0; woken++) {
+                queue.waiters--;
+                queue.threads.nextThread().ready();
+            }
+            if (queue.waiters == 0) {
+                queues.remove(paddr);
+                free.add(queue);
+            }
+        }
+
+        Machine.interrupt().restore(intStatus);
+        return woken;
+    }
+
+    private static class WaitQueue {
+        ThreadQueue threads =
+                ThreadedKernel.scheduler.newThreadQueue(false, "Futex");
+        int waiters = 0;
+    }
+
+    private static HashMap<Integer, WaitQueue> queues =
+            new HashMap<Integer, WaitQueue>();
+    private static LinkedList<WaitQueue> free = new LinkedList<WaitQueue>();
+}
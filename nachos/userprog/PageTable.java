@@ -0,0 +1,214 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+
+/**
+ * A sparse two-level page table, mapping virtual page numbers to packed page
+ * table entries. The directory holds one second-level table for each 1024
+ * consecutive virtual pages; a second-level table is only allocated while
+ * some page in its range is mapped, and the directory only grows as far as
+ * the highest page mapped, so the table takes memory in proportion to the
+ * pages mapped rather than to the size of the address space.
+ * <p/>
+ * <p/>
+ * An entry is an <tt>int</tt> in the processor's page table entry format:
+ * the physical page number in its low bits and the <tt>valid</tt>,
+ * <tt>readOnly</tt>, <tt>used</tt> and <tt>dirty</tt> bits in its high bits.
+ * An entry of 0 maps nothing.
+ * <p/>
+ * <p/>
+ * Without a TLB, the processor walks this table itself, setting the used and
+ * dirty bits of an entry as it translates through it. With a TLB, the process
+ * hands it <tt>TranslationEntry</tt>s made by <tt>entry()</tt> when it
+ * misses, and folds the used and dirty bits back with <tt>update()</tt>.
+ */
+public class PageTable implements Processor.PageDirectory {
+    /**
+     * Allocate a new, empty page table.
+     */
+    public PageTable() {
+        directory = new int[1][];
+        counts = new int[1];
+    }
+
+    /**
+     * Return the entry for a virtual page.
+     *
+     * @param    vpn    the virtual page number.
+     * @return the entry, or 0 if the page is not mapped.
+     */
+    public int get(int vpn) {
+        if (vpn < 0 || (vpn >> leafBits) >= directory.length)
+            return 0;
+
+        int[] leaf = directory[vpn >> leafBits];
+        return (leaf == null) ? 0 : leaf[vpn & leafMask];
+    }
+
+    /**
+     * Return the second-level table for a range of virtual pages, for the
+     * processor to walk.
+     *
+     * @param    index    the virtual page number divided by
+     *                      <tt>Processor.pageTableSize</tt>.
+     * @return the second-level table, or <tt>null</tt> if no page in the
+     * range is mapped.
+     */
+    public int[] getPageTable(int index) {
+        return (index < directory.length) ? directory[index] : null;
+    }
+
+    /**
+     * Map a virtual page to a physical page, allocating a second-level table
+     * if necessary.
+     *
+     * @param    vpn    the virtual page number.
+     * @param    ppn    the physical page number.
+     * @param    readOnly    whether the page is read-only.
+     */
+    public void map(int vpn, int ppn, boolean readOnly) {
+        Lib.assertTrue(vpn >= 0 && vpn < Processor.maxPages);
+        Lib.assertTrue(ppn >= 0 && ppn <= ppnMask);
+
+        if ((vpn >> leafBits) >= directory.length) {
+            int length = directory.length;
+            while ((vpn >> leafBits) >= length)
+                length *= 2;
+            directory = Arrays.copyOf(directory, length);
+            counts = Arrays.copyOf(counts, length);
+        }
+
+        int[] leaf = directory[vpn >> leafBits];
+        if (leaf == null) {
+            leaf = new int[leafSize];
+            directory[vpn >> leafBits] = leaf;
+        }
+        if (leaf[vpn & leafMask] == 0)
+            counts[vpn >> leafBits]++;
+        else
+            mapped--;
+        leaf[vpn & leafMask] = validBit | (readOnly ? readOnlyBit : 0) | ppn;
+        mapped++;
+    }
+
+    /**
+     * Remove the mapping of a virtual page, freeing its second-level table if
+     * no other page in it is mapped.
+     *
+     * @param    vpn    the virtual page number.
+     * @return the physical page it was mapped to, or -1 if it was not mapped.
+     */
+    public int unmap(int vpn) {
+        int pte = get(vpn);
+        if (pte == 0)
+            return -1;
+
+        directory[vpn >> leafBits][vpn & leafMask] = 0;
+        if (--counts[vpn >> leafBits] == 0)
+            directory[vpn >> leafBits] = null;
+        mapped--;
+
+        return ppn(pte);
+    }
+
+    /**
+     * Set the used bit of a page, and its dirty bit if it was written. Does
+     * nothing if the page is not mapped.
+     *
+     * @param    vpn    the virtual page number.
+     * @param    dirty    whether the page was written.
+     */
+    public void touch(int vpn, boolean dirty) {
+        if (get(vpn) != 0)
+            directory[vpn >> leafBits][vpn & leafMask] |=
+                    usedBit | (dirty ? dirtyBit : 0);
+    }
+
+    /**
+     * Fold the used and dirty bits of a translation the processor has been
+     * using back into the entry of its page.
+     *
+     * @param    entry    the translation.
+     */
+    public void update(TranslationEntry entry) {
+        if (entry.used || entry.dirty)
+            touch(entry.vpn, entry.dirty);
+    }
+
+    /**
+     * Return a translation for the processor of a mapped virtual page.
+     *
+     * @param    vpn    the virtual page number.
+     * @return a valid translation, or <tt>null</tt> if the page is not
+     * mapped.
+     */
+    public TranslationEntry entry(int vpn) {
+        int pte = get(vpn);
+        if (pte == 0)
+            return null;
+
+        return new TranslationEntry(vpn, ppn(pte), true, readOnly(pte),
+                false, false);
+    }
+
+    /**
+     * Return the number of pages mapped.
+     *
+     * @return the number of pages mapped.
+     */
+    public int size() {
+        return mapped;
+    }
+
+    /**
+     * Return the physical page number of an entry.
+     */
+    public static int ppn(int pte) {
+        return pte & ppnMask;
+    }
+
+    /**
+     * Test whether an entry maps a page.
+     */
+    public static boolean valid(int pte) {
+        return (pte & validBit) != 0;
+    }
+
+    /**
+     * Test whether an entry maps a read-only page.
+     */
+    public static boolean readOnly(int pte) {
+        return (pte & readOnlyBit) != 0;
+    }
+
+    /**
+     * Test whether the page of an entry has been used.
+     */
+    public static boolean used(int pte) {
+        return (pte & usedBit) != 0;
+    }
+
+    /**
+     * Test whether the page of an entry has been written.
+     */
+    public static boolean dirty(int pte) {
+        return (pte & dirtyBit) != 0;
+    }
+
+    private int[][] directory;
+    /** The number of pages mapped in each second-level table. */
+    private int[] counts;
+    private int mapped = 0;
+
+    private static final int leafBits = Processor.pageTableBits;
+    private static final int leafSize = Processor.pageTableSize;
+    private static final int leafMask = leafSize - 1;
+
+    private static final int validBit = Processor.pteValid;
+    private static final int readOnlyBit = Processor.pteReadOnly;
+    private static final int usedBit = Processor.pteUsed;
+    private static final int dirtyBit = Processor.pteDirty;
+    private static final int ppnMask = Processor.ptePPNMask;
+}
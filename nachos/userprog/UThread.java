@@ -41,6 +41,7 @@ public class UThread extends KThread {
 
         for (int i = 0; i < Processor.numUserRegisters; i++)
             userRegisters[i] = Machine.processor().readRegister(i);
+        process.restartAtomicSequence(userRegisters);
 
         super.saveState();
     }
@@ -16,14 +16,24 @@ public class UserKernel extends ThreadedKernel {
     }
 
     /**
-     * Initialize this kernel. Creates a synchronized console and sets the
-     * processor's exception handler.
+     * Initialize this kernel. Creates a synchronized console, puts every
+     * physical page in the free pool, and sets the processor's exception
+     * handler.
      */
     public void initialize(String[] args) {
         super.initialize(args);
 
         console = new SynchConsole(Machine.console());
+
         memLock = new Lock();
+        int numPhysPages = Machine.processor().getNumPhysPages();
+        usedPages = new long[(numPhysPages + 63) / 64];
+        freePages = new int[numPhysPages];
+        // stacked in reverse, so the lowest pages are handed out first
+        for (numFreePages = 0; numFreePages < numPhysPages; numFreePages++)
+            freePages[numFreePages] = numPhysPages - 1 - numFreePages;
+        Machine.stats().numFreePages = numFreePages;
+        Machine.stats().minFreePages = numFreePages;
         Machine.processor().setExceptionHandler(new Runnable() {
             public void run() {
                 exceptionHandler();
@@ -102,60 +112,88 @@ public class UserKernel extends ThreadedKernel {
         KThread.currentThread().finish();
     }
 
-    private static class MemNode {
-        public int ppn;
-        public MemNode next;
-        public MemNode(int ppn, MemNode next){
-            this.ppn = ppn; this.next = next;
-        }
+    /**
+     * Allocate a free physical page.
+     *
+     * @return the number of the page, or -1 if there is no free page.
+     */
+    public static int allocPPN(){
+        memLock.acquire();
+        int ppn = -1;
+        if(numFreePages > 0)
+            ppn = takeFreePage();
+        else
+            Machine.stats().numPageAllocFailures++;
+        memLock.release();
+        return ppn;
     }
 
-    private static final int MAX_PPN = Machine.processor().getNumPhysPages();
-
-    private static Lock memLock = null;
-    // linked-list of USED memory
-    private static MemNode head = new MemNode(-1, null);
+    /**
+     * Allocate <i>n</i> free physical pages at once: either all of them, or,
+     * if there are not enough free pages, none.
+     *
+     * @param    n    the number of pages to allocate.
+     * @return the numbers of the pages, or <tt>null</tt> if there are fewer
+     * than <i>n</i> free pages.
+     */
+    public static int[] allocPPNs(int n){
+        Lib.assertTrue(n >= 0);
 
-    // first fit
-    public static int allocPPN(){
-        int ret = -1;
         memLock.acquire();
-        boolean found = false;
-        MemNode prnt = head;
-        for(MemNode cur = prnt.next; cur != null; prnt = cur, cur = cur.next){
-            if(prnt.ppn+1 < cur.ppn){
-                found = true; ret = prnt.ppn+1;
-                prnt.next = new MemNode(ret, cur);
-                break;
-            }
-        }
-        if(!found){
-            if(prnt.ppn < MAX_PPN){
-                ret = prnt.ppn+1;
-                prnt.next = new MemNode(ret, null);
-            }
+        int[] ppns = null;
+        if(numFreePages >= n){
+            ppns = new int[n];
+            for(int i = 0; i < n; i++)
+                ppns[i] = takeFreePage();
         }
+        else
+            Machine.stats().numPageAllocFailures++;
         memLock.release();
-        // -1 if no free page
-        return ret;
+        return ppns;
     }
 
-    // linear search
+    /**
+     * Return a physical page to the free pool.
+     *
+     * @param    ppn    the number of the page.
+     * @return    <tt>false</tt> if the page was not allocated.
+     */
     public static boolean recyclPPN(int ppn){
-        boolean ret = false;
+        if(ppn < 0 || ppn >= freePages.length)
+            return false;
+
         memLock.acquire();
-        MemNode prnt = head;
-        for(MemNode cur = head.next; cur != null; prnt = cur, cur = cur.next){
-            if(cur.ppn == ppn){
-                ret = true;
-                prnt.next = cur.next;
-                break;
-            }
+        boolean used = (usedPages[ppn >> 6] & (1L << ppn)) != 0;
+        if(used){
+            usedPages[ppn >> 6] &= ~(1L << ppn);
+            freePages[numFreePages++] = ppn;
+            Machine.stats().numFreePages = numFreePages;
         }
         memLock.release();
-        return ret;
+        return used;
     }
 
+    /**
+     * Pop a page off the free stack and mark it used. The memory lock must be
+     * held, and there must be a free page.
+     */
+    private static int takeFreePage(){
+        int ppn = freePages[--numFreePages];
+        usedPages[ppn >> 6] |= 1L << ppn;
+
+        Stats stats = Machine.stats();
+        stats.numFreePages = numFreePages;
+        stats.minFreePages = Math.min(stats.minFreePages, numFreePages);
+        return ppn;
+    }
+
+    private static Lock memLock = null;
+    /** One bit per physical page, set while the page is allocated. */
+    private static long[] usedPages;
+    /** A stack of the free physical pages; the top is at numFreePages-1. */
+    private static int[] freePages;
+    private static int numFreePages;
+
     /**
      * Terminate this kernel. Never returns.
      */
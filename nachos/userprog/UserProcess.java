@@ -24,16 +24,12 @@ public class UserProcess {
      * Allocate a new process.
      */
     public UserProcess() {
-        int numPhysPages = Machine.processor().getNumPhysPages();
-        pageTable = new TranslationEntry[numPhysPages];
+        pageTable = new PageTable();
 
         fileDescriptors = new FileDescriptor[maxFDN];
         fileDescriptors[0] = new FileDescriptor(UserKernel.console.openForReading());
         fileDescriptors[1] = new FileDescriptor(UserKernel.console.openForWriting());
 
-        for (int i = 0; i < numPhysPages; i++)
-            pageTable[i] = new TranslationEntry(i, i, false, false, false, false);
-
         if (nextPid == 0) {
             this.pid = 0;
             nextPid ++;
@@ -129,24 +125,71 @@ public class UserProcess {
         if (!load(name, args))
             return false;
 
-        new UThread(this).setName(name).fork();
+        UThread thread = new UThread(this);
+        ThreadedKernel.scheduler.setGroup(thread, this);
+        thread.setName(name).fork();
 
         return true;
     }
 
     /**
      * Save the state of this process in preparation for a context switch.
-     * Called by <tt>UThread.saveState()</tt>.
+     * Called by <tt>UThread.saveState()</tt>. Folds the used and dirty bits
+     * of the TLB entries back into the page table; without a TLB, the
+     * processor sets them in the page table itself.
      */
     public void saveState() {
+        Processor processor = Machine.processor();
+        if (processor.hasTLB()) {
+            for (int i = 0; i < processor.getTLBSize(); i++) {
+                TranslationEntry entry = processor.readTLBEntry(i);
+                if (entry.valid)
+                    pageTable.update(entry);
+            }
+        }
     }
 
     /**
      * Restore the state of this process after a context switch. Called by
-     * <tt>UThread.restoreState()</tt>.
+     * <tt>UThread.restoreState()</tt>. Flushes the TLB, or, without one,
+     * gives the processor this process's page table to walk.
      */
     public void restoreState() {
-        Machine.processor().setPageTable(pageTable);
+        Processor processor = Machine.processor();
+        if (processor.hasTLB()) {
+            for (int i = 0; i < processor.getTLBSize(); i++)
+                processor.writeTLBEntry(i, new TranslationEntry());
+        } else {
+            processor.setPageDirectory(pageTable);
+        }
+    }
+
+    /**
+     * Give the processor a translation for the page at <i>vaddr</i>, which
+     * it has just faulted on, in a TLB entry, evicting the next entry in
+     * turn. Without a TLB the processor walks the page table itself, so a
+     * page fault on a page mapped since is resolved by just running the
+     * instruction again, which reads the current entry.
+     *
+     * @param    vaddr    the virtual address that faulted.
+     * @return    <tt>true</tt> if the page is mapped, <tt>false</tt> if the
+     * fault is an error.
+     */
+    protected boolean handleTranslationFault(int vaddr) {
+        int vpn = Processor.pageFromAddress(vaddr);
+        TranslationEntry entry = pageTable.entry(vpn);
+        if (entry == null)
+            return false;
+
+        Processor processor = Machine.processor();
+        if (processor.hasTLB()) {
+            TranslationEntry victim = processor.readTLBEntry(tlbVictim);
+            if (victim.valid)
+                pageTable.update(victim);
+            processor.writeTLBEntry(tlbVictim, entry);
+            tlbVictim = (tlbVictim + 1) % processor.getTLBSize();
+        }
+        return true;
     }
 
     /**
@@ -216,24 +259,20 @@ public class UserProcess {
         byte[] memory = Machine.processor().getMemory();
         int amount = 0;
 
-        int idx = vaddr / pageSize;
-        int pageOffset = vaddr - idx * pageSize;//page offset
-        int bytesInCurrentPage= Math.min(length, Processor.pageSize-pageOffset);
-
-        while (length !=0) {
-            if (pageTable[idx] == null) {
-                handleException(Processor.exceptionPageFault);
-            }
-            int ppn = pageTable[idx].ppn;
-            if(ppn < 0 || ppn >= memory.length) return 0;
+        while (amount < length && vaddr + amount >= 0) {
+            int vpn = Processor.pageFromAddress(vaddr + amount);
+            int pageOffset = Processor.offsetFromAddress(vaddr + amount);
+            int pte = pageTable.get(vpn);
+            if (!PageTable.valid(pte))
+                break;
 
-            System.arraycopy(memory, ppn*Processor.pageSize +pageOffset, data, offset, bytesInCurrentPage);
+            int bytesInCurrentPage =
+                    Math.min(length - amount, pageSize - pageOffset);
+            System.arraycopy(memory,
+                    Processor.makeAddress(PageTable.ppn(pte), pageOffset),
+                    data, offset + amount, bytesInCurrentPage);
+            pageTable.touch(vpn, false);
             amount += bytesInCurrentPage;
-            length -= bytesInCurrentPage;
-            offset += bytesInCurrentPage;
-            idx ++;
-            pageOffset = 0;
-            bytesInCurrentPage = Math.min(length, Processor.pageSize);
         }
 
         return amount;
@@ -283,26 +322,20 @@ public class UserProcess {
 
         int amount = 0;
 
-        int idx = vaddr / pageSize;
-        if (pageTable[idx].readOnly) return amount;
-        int pageOffset = vaddr - idx * pageSize;//page offset
-        int bytesInCurrentPage= Math.min(length, Processor.pageSize - pageOffset);
-
-        while (length !=0) {
-            if (pageTable[idx] == null) {
-                handleException(Processor.exceptionPageFault);
-            }
-            int ppn = pageTable[idx].ppn;
-            if(ppn < 0 || ppn >= memory.length) return 0;
+        while (amount < length && vaddr + amount >= 0) {
+            int vpn = Processor.pageFromAddress(vaddr + amount);
+            int pageOffset = Processor.offsetFromAddress(vaddr + amount);
+            int pte = pageTable.get(vpn);
+            if (!PageTable.valid(pte) || PageTable.readOnly(pte))
+                break;
 
-            System.arraycopy(data, offset+amount, memory, ppn*Processor.pageSize +pageOffset, bytesInCurrentPage);
+            int bytesInCurrentPage =
+                    Math.min(length - amount, pageSize - pageOffset);
+            System.arraycopy(data, offset + amount, memory,
+                    Processor.makeAddress(PageTable.ppn(pte), pageOffset),
+                    bytesInCurrentPage);
+            pageTable.touch(vpn, true);
             amount += bytesInCurrentPage;
-            length -= bytesInCurrentPage;
-            offset += bytesInCurrentPage;
-            idx ++;
-            if (pageTable[idx].readOnly) return amount;
-            pageOffset = 0;
-            bytesInCurrentPage = Math.min(length, Processor.pageSize);
         }
 
         return amount;
@@ -364,37 +397,27 @@ public class UserProcess {
         // program counter initially points at the program entry point
         initialPC = coff.getEntryPoint();
 
+        // reserve the pages for the sections, the stack and the arguments
+        // all at once, so that running out part way allocates nothing
+        int[] ppns = UserKernel.allocPPNs(numPages + stackPages + 1);
+        if (ppns == null) {
+            coff.close();
+            Lib.debug(dbgProcess, "\tinsufficient physical memory");
+            return false;
+        }
+        sectionPPNs = ppns;
+
         // next comes the stack; stack pointer initially points to top of it
         for (int i = 0; i < stackPages; i++) {
             int vpn = numPages+i;
-            int newPage = UserKernel.allocPPN();
-            if (newPage != -1) {
-                pageTable[vpn].ppn = newPage;
-                pageTable[vpn].used = true;
-                pageTable[vpn].readOnly = false;
-                pageTable[vpn].valid = true;
-
-            } else {
-                Lib.debug(dbgProcess, "\tinsufficient physical memory");
-                return false;
-            }
+            pageTable.map(vpn, ppns[vpn], false);
         }
         numPages += stackPages;
         initialSP = numPages * pageSize;
 
-        // and finally reserve 1 page for arguments
+        // and finally 1 page for arguments
         int arguVpn = numPages;
-        int newPage = UserKernel.allocPPN();
-        if (newPage != -1) {
-            pageTable[arguVpn].ppn = newPage;
-            pageTable[arguVpn].used = true;
-            pageTable[arguVpn].readOnly = false;
-            pageTable[arguVpn].valid = true;
-
-        } else {
-            Lib.debug(dbgProcess, "\tinsufficient physical memory");
-            return false;
-        }
+        pageTable.map(arguVpn, ppns[arguVpn], false);
         numPages++;
 
         if (!loadSections())
@@ -430,19 +453,14 @@ public class UserProcess {
     }
 
     /**
-     * Allocates memory for this process, and loads the COFF sections into
-     * memory. If this returns successfully, the process will definitely be
-     * run (this is the last step in process initialization that can fail).
+     * Loads the COFF sections into the physical pages <tt>load()</tt> has
+     * reserved for them. If this returns successfully, the process will
+     * definitely be run (this is the last step in process initialization
+     * that can fail).
      *
      * @return    <tt>true</tt> if the sections were successfully loaded.
      */
     protected boolean loadSections() {
-        if (numPages > Machine.processor().getNumPhysPages()) {
-            coff.close();
-            Lib.debug(dbgProcess, "\tinsufficient physical memory");
-            return false;
-        }
-
         // load sections
         for (int s = 0; s < coff.getNumSections(); s++) {
             CoffSection section = coff.getSection(s);
@@ -452,19 +470,8 @@ public class UserProcess {
 
             for (int i = 0; i < section.getLength(); i++) {
                 int vpn = section.getFirstVPN() + i;
-                int newPage = UserKernel.allocPPN();
-                if (newPage != -1) {
-                    pageTable[vpn].ppn = newPage;
-                    pageTable[vpn].used = true;
-                    pageTable[vpn].readOnly = section.isReadOnly();
-                    pageTable[vpn].valid = true;
-
-                } else {
-                    Lib.debug(dbgProcess, "\tinsufficient physical memory");
-                    return false;
-                }
-                // for now, just assume virtual addresses=physical addresses
-                section.loadPage(i, pageTable[vpn].ppn);
+                pageTable.map(vpn, sectionPPNs[vpn], section.isReadOnly());
+                section.loadPage(i, sectionPPNs[vpn]);
             }
         }
 
@@ -484,8 +491,7 @@ public class UserProcess {
 
             for (int i = 0; i < section.getLength(); i++) {
                 int vpn = section.getFirstVPN() + i;
-                UserKernel.recyclPPN(pageTable[vpn].ppn);
-                pageTable[vpn].ppn = -1;
+                UserKernel.recyclPPN(pageTable.unmap(vpn));
             }
         }
     }
@@ -593,12 +599,13 @@ public class UserProcess {
         Lib.debug(dbgProcess, "Handle file read.");
         if (fd < 0 || fd >= 16 || fileDescriptors[fd] == null)
             return -1;
+        if (count < 0 || !isMapped(buff, count, true))
+            return -1;
         OpenFile fileDesc = fileDescriptors[fd].openFile;
         int pos = fileDescriptors[fd].pos;
-        byte[] buffer = new byte[count];
-        int rtn = fileDesc.read(pos, buffer, 0, count);
-        fileDescriptors[fd].pos += rtn;
-        writeVirtualMemory(buff, buffer);
+        int rtn = transferFile(fileDesc, pos, buff, count, true);
+        if (rtn > 0)
+            fileDescriptors[fd].pos += rtn;
         return rtn;
     }
 
@@ -606,19 +613,79 @@ public class UserProcess {
         Lib.debug(dbgProcess, "Handle file write.");
         if (fd < 0 || fd >= 16 || fileDescriptors[fd] == null)
             return -1;
+        if (count < 0 || !isMapped(buff, count, false))
+            return -1;
         OpenFile fileDesc = fileDescriptors[fd].openFile;
         int pos = fileDescriptors[fd].pos;
-        byte[] buffer = new byte[count];
-        int amount = readVirtualMemory(buff, buffer);
-        if (amount < count)
-            return -1;
-        int rtn = fileDesc.write(pos, buffer, 0, count);
+        int rtn = transferFile(fileDesc, pos, buff, count, false);
         if (rtn < count)
             return -1;
         fileDescriptors[fd].pos += rtn;
         return rtn;
     }
 
+    /**
+     * Test whether every page of a user buffer is mapped, and, if the buffer
+     * is to be written, writable.
+     */
+    private boolean isMapped(int vaddr, int length, boolean writing) {
+        if (vaddr < 0 || vaddr + length < 0)
+            return false;
+        if (length == 0)
+            return true;
+
+        int last = Processor.pageFromAddress(vaddr + length - 1);
+        for (int vpn = Processor.pageFromAddress(vaddr); vpn <= last; vpn++) {
+            int pte = pageTable.get(vpn);
+            if (!PageTable.valid(pte) || (writing && PageTable.readOnly(pte)))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Transfer bytes between a file and a user buffer, which must be mapped,
+     * without copying them through a kernel buffer: the buffer is walked a
+     * page at a time, and each page's slice of main memory is handed
+     * straight to the file's <tt>read()</tt> or <tt>write()</tt>.
+     *
+     * @param    file    the file to read or write.
+     * @param    pos    the position in the file to start at.
+     * @param    vaddr    the user buffer.
+     * @param    count    the number of bytes to transfer.
+     * @param    reading    <tt>true</tt> to read the file into the buffer,
+     * <tt>false</tt> to write the buffer to the file.
+     * @return the number of bytes transferred, which is less than
+     * <i>count</i> if the file came to an end, or -1 if the file failed
+     * before any were.
+     */
+    private int transferFile(OpenFile file, int pos, int vaddr, int count,
+                             boolean reading) {
+        byte[] memory = Machine.processor().getMemory();
+        int amount = 0;
+
+        while (amount < count) {
+            int vpn = Processor.pageFromAddress(vaddr + amount);
+            int pageOffset = Processor.offsetFromAddress(vaddr + amount);
+            int paddr = Processor.makeAddress(
+                    PageTable.ppn(pageTable.get(vpn)), pageOffset);
+            int length = Math.min(count - amount, pageSize - pageOffset);
+
+            int transferred = reading
+                    ? file.read(pos + amount, memory, paddr, length)
+                    : file.write(pos + amount, memory, paddr, length);
+            if (transferred < 0)
+                return (amount == 0) ? -1 : amount;
+
+            pageTable.touch(vpn, reading);
+            amount += transferred;
+            if (transferred < length)
+                break;
+        }
+
+        return amount;
+    }
+
     private int handleClose(int fd) {
         Lib.debug(dbgProcess, "Handle file close.");
         if (fd < 0 || fd >= maxFDN) {
@@ -740,12 +807,12 @@ public class UserProcess {
             handleHalt();
         }
         //dealloc page for arguments
-        UserKernel.recyclPPN(this.pageTable[numPages-1].ppn);
+        UserKernel.recyclPPN(pageTable.unmap(numPages-1));
         numPages --;
 
         //dealloc page for stack
         for (int i = 0; i < stackPages; i++) {
-            UserKernel.recyclPPN(this.pageTable[numPages-1-i].ppn);
+            UserKernel.recyclPPN(pageTable.unmap(numPages-1-i));
         }
         numPages -= stackPages;
 
@@ -825,6 +892,83 @@ public class UserProcess {
         return 1;
     }
 
+    /**
+     * Handle the futex_wait() system call.
+     */
+    private int handleFutexWait(int vaddr, int expected) {
+        int paddr = futexAddress(vaddr);
+        if (paddr < 0)
+            return -1;
+
+        return Futex.wait(paddr, expected);
+    }
+
+    /**
+     * Handle the futex_wake() system call.
+     */
+    private int handleFutexWake(int vaddr, int count) {
+        int paddr = futexAddress(vaddr);
+        if (paddr < 0 || count < 0)
+            return -1;
+
+        return Futex.wake(paddr, count);
+    }
+
+    /**
+     * Translate the virtual address of a futex to a physical address.
+     *
+     * @param    vaddr    the virtual address of the futex.
+     * @return the physical address, or -1 if <i>vaddr</i> is not aligned or
+     * not mapped.
+     */
+    private int futexAddress(int vaddr) {
+        if (vaddr < 0 || vaddr % 4 != 0)
+            return -1;
+
+        int pte = pageTable.get(Processor.pageFromAddress(vaddr));
+        if (!PageTable.valid(pte) || PageTable.readOnly(pte))
+            return -1;
+
+        return Processor.makeAddress(PageTable.ppn(pte),
+                Processor.offsetFromAddress(vaddr));
+    }
+
+    /**
+     * Handle the atomic_range() system call, which <tt>__start</tt> makes to
+     * register the restartable atomic sequence of <tt>cmpxchg()</tt>. Only
+     * the kernel sees a thread being switched out, so it must know where the
+     * sequence lies; registering it once lets the uncontended paths of the
+     * futex-based locks in <tt>usync.c</tt> run without any system call.
+     */
+    private int handleAtomicRange(int start, int end) {
+        if (start < 0 || end <= start || start % 4 != 0 || end % 4 != 0
+                || end - start > maxAtomicRange)
+            return -1;
+
+        atomicStart = start;
+        atomicEnd = end;
+        return 0;
+    }
+
+    /**
+     * Restart the registered atomic sequence if the specified user registers
+     * were saved in the middle of it. The processor has no
+     * <tt>ll</tt>/<tt>sc</tt>, so user programs make a compare-and-swap
+     * atomic by registering it with <tt>atomic_range()</tt>: on one processor
+     * the sequence can only be interrupted by a context switch, and a thread
+     * switched out before its final store simply runs it again. Called by
+     * <tt>UThread.saveState()</tt>.
+     *
+     * @param    registers    the thread's saved user registers.
+     */
+    public void restartAtomicSequence(int[] registers) {
+        int pc = registers[Processor.regPC];
+        if (pc >= atomicStart && pc < atomicEnd) {
+            registers[Processor.regPC] = atomicStart;
+            registers[Processor.regNextPC] = atomicStart + 4;
+        }
+    }
+
     private static final int
             syscallHalt = 0,
             syscallExit = 1,
@@ -835,7 +979,10 @@ public class UserProcess {
             syscallRead = 6,
             syscallWrite = 7,
             syscallClose = 8,
-            syscallUnlink = 9;
+            syscallUnlink = 9,
+            syscallFutexWait = 13,
+            syscallFutexWake = 14,
+            syscallAtomicRange = 15;
 
     /**
      * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -856,6 +1003,12 @@ public class UserProcess {
      * </tt></td></tr>
      * <tr><td>8</td><td><tt>int  close(int fd);</tt></td></tr>
      * <tr><td>9</td><td><tt>int  unlink(char *name);</tt></td></tr>
+     * <tr><td>13</td><td><tt>int  futex_wait(int *addr, int expected);</tt>
+     * </td></tr>
+     * <tr><td>14</td><td><tt>int  futex_wake(int *addr, int count);</tt>
+     * </td></tr>
+     * <tr><td>15</td><td><tt>int  atomic_range(void *start, void *end);</tt>
+     * </td></tr>
      * </table>
      *
      * @param    syscall    the syscall number.
@@ -887,6 +1040,12 @@ public class UserProcess {
                 return handleClose(a0);
             case syscallUnlink:
                 return handleUnlink(a0);
+            case syscallFutexWait:
+                return handleFutexWait(a0, a1);
+            case syscallFutexWake:
+                return handleFutexWake(a0, a1);
+            case syscallAtomicRange:
+                return handleAtomicRange(a0, a1);
 
 
             default:
@@ -920,46 +1079,59 @@ public class UserProcess {
                 break;
             case Processor.exceptionPageFault:
             case Processor.exceptionTLBMiss:
+                if (!handleTranslationFault(
+                        processor.readRegister(Processor.regBadVAddr)))
+                    handleFatalException(cause);
+                break;
             case Processor.exceptionReadOnly:
             case Processor.exceptionBusError:
             case Processor.exceptionAddressError:
             case Processor.exceptionOverflow:
             case Processor.exceptionIllegalInstruction:
-                Lib.debug(dbgProcess, "Unexpected exception: " +
-                        Processor.exceptionNames[cause]);
-                lock.acquire();
-                processesSet.remove(this.pid);
-                if (processesSet.isEmpty()) {
-                    Machine.halt();
-                }
-                //dealloc page for arguments
-                UserKernel.recyclPPN(this.pageTable[numPages-1].ppn);
-                numPages --;
-
-                //dealloc page for stack
-                for (int i = 0; i < stackPages; i++) {
-                    UserKernel.recyclPPN(this.pageTable[numPages-1-i].ppn);
-                }
-                numPages -= stackPages;
+                handleFatalException(cause);
+                break;
+        }
+    }
 
-                unloadSections();
+    /**
+     * Kill this process after an exception it cannot recover from: free its
+     * memory and files, wake any joining parent, and finish its thread.
+     *
+     * @param    cause    the user exception that occurred.
+     */
+    private void handleFatalException(int cause) {
+        Lib.debug(dbgProcess, "Unexpected exception: " +
+                Processor.exceptionNames[cause]);
+        lock.acquire();
+        processesSet.remove(this.pid);
+        if (processesSet.isEmpty()) {
+            Machine.halt();
+        }
+        //dealloc page for arguments
+        UserKernel.recyclPPN(pageTable.unmap(numPages-1));
+        numPages --;
 
-                //deal with opened files
-                for (int i = 0; i < maxFDN; i++) {
-                    FileDescriptor fd = fileDescriptors[i];
-                    if (fd != null) {
-                        handleClose(i);
-                    }
-                }
-                coff.close();
-                //remove this pid
+        //dealloc page for stack
+        for (int i = 0; i < stackPages; i++) {
+            UserKernel.recyclPPN(pageTable.unmap(numPages-1-i));
+        }
+        numPages -= stackPages;
 
-                cond.wakeAll();
-                lock.release();
-                KThread.finish();
+        unloadSections();
 
-                break;
+        //deal with opened files
+        for (int i = 0; i < maxFDN; i++) {
+            FileDescriptor fd = fileDescriptors[i];
+            if (fd != null) {
+                handleClose(i);
+            }
         }
+        coff.close();
+        //remove this pid
+
+        cond.wakeAll();
+        lock.release();
+        KThread.finish();
     }
 
     /**
@@ -970,7 +1142,14 @@ public class UserProcess {
     /**
      * This process's page table.
      */
-    protected TranslationEntry[] pageTable;
+    protected PageTable pageTable;
+    /** The TLB entry to evict next. */
+    private int tlbVictim = 0;
+    /**
+     * The physical pages reserved by <tt>load()</tt>, indexed by virtual page
+     * number, for <tt>loadSections()</tt> to map.
+     */
+    protected int[] sectionPPNs;
     protected int tableSize = 0;
     /**
      * The number of contiguous pages occupied by the program.
@@ -985,6 +1164,12 @@ public class UserProcess {
     private int initialPC, initialSP;
     private int argc, argv;
 
+    /**
+     * The restartable atomic sequence registered with <tt>atomic_range()</tt>.
+     */
+    private int atomicStart = 0, atomicEnd = 0;
+    private static final int maxAtomicRange = 64;
+
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
 